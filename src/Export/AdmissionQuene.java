@@ -0,0 +1,365 @@
+/**
+ * This file is part of libRibbonIO library (check README).
+ * Copyright (C) 2012-2013 Stanislav Nepochatov
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+**/
+
+package Export;
+
+import Utils.IOControl;
+
+/**
+ * Admission quene of export pipeline. Released messages wait here 
+ * for fan-out to export schemas, quene is bounded and applies 
+ * overflow policy when it's full. Releases are served by deadline 
+ * of their priority (see <code>ExportPriority</code>).<br>
+ * <br>
+ * Quene reads next server properties:<br>
+ * <b>export_admission_size</b> - capacity of quene (10000 by default);<br>
+ * <b>export_admission_threads</b> - count of fan-out threads (1 by default);<br>
+ * <b>export_admission_policy</b> - overflow policy (<code>BLOCK</code> by default).<br>
+ * <br>
+ * <code>SPILL</code> policy keeps only message indexes on disk, so it's 
+ * accepted only if server wrapper can look messages up by index 
+ * (see <code>IOControl.canRestoreMessages()</code>), otherwise quene 
+ * falls back to <code>BLOCK</code>.
+ * @author Stanislav Nepochatov <spoilt.exile@gmail.com>
+ */
+public class AdmissionQuene {
+    
+    /**
+     * Overflow policy enumeration.
+     */
+    public static enum OVERFLOW {
+        
+        /**
+         * Block releasing thread until quene has free space.
+         */
+        BLOCK,
+        
+        /**
+         * Drop message and print warning to log.
+         */
+        SHED,
+        
+        /**
+         * Write message index to spill file and admit it later 
+         * (requires server which can look messages up by index).
+         */
+        SPILL
+    }
+    
+    /**
+     * Message waiting for fan-out.
+     */
+    static class Release implements Comparable<Release> {
+        
+        /**
+         * Sequence of releases for FIFO order inside same deadline.
+         */
+        private static final java.util.concurrent.atomic.AtomicLong SEQUENCE = new java.util.concurrent.atomic.AtomicLong();
+        
+        /**
+         * Released message.
+         */
+        final MessageClasses.Message message;
+        
+        /**
+         * Release switch of message.
+         */
+        final ReleaseSwitch releaseSwitch;
+        
+        /**
+         * Resolved schemas with called dirs.
+         */
+        final java.util.Map<Schema, java.util.ArrayList<String>> fanOut;
+        
+        /**
+         * Priority of release: the highest of message and resolved schemas.
+         */
+        final ExportPriority priority;
+        
+        /**
+         * Deadline of release.
+         */
+        private final long deadline;
+        
+        /**
+         * Sequence number of release.
+         */
+        private final long sequence;
+        
+        /**
+         * Default constructor.
+         * @param givenMessage released message;
+         * @param givenSwitch release switch;
+         * @param givenFanOut resolved schemas;
+         */
+        Release(MessageClasses.Message givenMessage, ReleaseSwitch givenSwitch, java.util.Map<Schema, java.util.ArrayList<String>> givenFanOut) {
+            message = givenMessage;
+            releaseSwitch = givenSwitch;
+            fanOut = givenFanOut;
+            ExportPriority currPriority = ExportPriority.ofMessage(givenMessage);
+            for (Schema currSchema : givenFanOut.keySet()) {
+                currPriority = ExportPriority.max(currPriority, currSchema.currPriority);
+            }
+            priority = currPriority != null ? currPriority : ExportPriority.NORMAL;
+            deadline = priority.getDeadline();
+            sequence = SEQUENCE.incrementAndGet();
+        }
+
+        @Override
+        public int compareTo(Release other) {
+            if (deadline != other.deadline) {
+                return deadline < other.deadline ? -1 : 1;
+            }
+            return sequence < other.sequence ? -1 : (sequence == other.sequence ? 0 : 1);
+        }
+    }
+    
+    /**
+     * Quene itself.
+     */
+    private final java.util.concurrent.PriorityBlockingQueue<Release> quene = new java.util.concurrent.PriorityBlockingQueue<>();
+    
+    /**
+     * Free places of quene.
+     */
+    private final java.util.concurrent.Semaphore capacity;
+    
+    /**
+     * Current overflow policy.
+     */
+    private final OVERFLOW policy;
+    
+    /**
+     * Spill file for <code>SPILL</code> policy.
+     */
+    private final java.io.File spillFile;
+    
+    /**
+     * Lock of spill file.
+     */
+    private final Object spillLock = new Object();
+    
+    /**
+     * Count of messages in spill file.
+     */
+    private final java.util.concurrent.atomic.AtomicInteger spillCount = new java.util.concurrent.atomic.AtomicInteger();
+    
+    /**
+     * Count of dropped messages.
+     */
+    private final java.util.concurrent.atomic.AtomicLong rejected = new java.util.concurrent.atomic.AtomicLong();
+    
+    /**
+     * Count of spilled messages.
+     */
+    private final java.util.concurrent.atomic.AtomicLong spilled = new java.util.concurrent.atomic.AtomicLong();
+    
+    /**
+     * Dispatcher which owns this quene.
+     */
+    private final Dispatcher dispatcher;
+    
+    /**
+     * Default constructor.
+     * @param givenDispatcher dispatcher which owns this quene;
+     * @param givenCapacity capacity of quene;
+     * @param givenPolicy overflow policy;
+     * @param givenSpillFile spill file for <code>SPILL</code> policy;
+     * @param givenThreads count of fan-out threads;
+     */
+    public AdmissionQuene(Dispatcher givenDispatcher, int givenCapacity, OVERFLOW givenPolicy, java.io.File givenSpillFile, int givenThreads) {
+        dispatcher = givenDispatcher;
+        capacity = new java.util.concurrent.Semaphore(givenCapacity);
+        policy = givenPolicy;
+        spillFile = givenSpillFile;
+        if (spillFile.exists()) {
+            try {
+                spillCount.set(java.nio.file.Files.readAllLines(spillFile.toPath(), java.nio.charset.StandardCharsets.UTF_8).size());
+            } catch (java.io.IOException ex) {
+                IOControl.serverWrapper.log(IOControl.EXPORT_LOGID, 1, "неможливо прочитати файл " + spillFile.getName());
+            }
+        }
+        for (int threadIndex = 0; threadIndex < Math.max(givenThreads, 1); threadIndex++) {
+            Thread fanOutThread = new Thread(new Runnable() {
+
+                @Override
+                public void run() {
+                    while (true) {
+                        try {
+                            Release nextRelease = quene.poll(1, java.util.concurrent.TimeUnit.SECONDS);
+                            if (nextRelease != null) {
+                                capacity.release();
+                                dispatcher.fanOut(nextRelease);
+                            } else if (spillCount.get() > 0) {
+                                drainSpill();
+                            }
+                        } catch (InterruptedException ex) {
+                            return;
+                        } catch (RuntimeException ex) {
+                            IOControl.serverWrapper.postException("Помилка розсилки повідомлення до схем експорту", ex);
+                        }
+                    }
+                }
+            }, "ExportAdmission-" + (threadIndex + 1));
+            fanOutThread.setDaemon(true);
+            fanOutThread.start();
+        }
+    }
+    
+    /**
+     * Build quene from server config.
+     * @param givenDispatcher dispatcher which owns this quene;
+     * @param givenDirPath path of export config dir (for spill file);
+     * @return new quene;
+     */
+    public static AdmissionQuene fromConfig(Dispatcher givenDispatcher, String givenDirPath) {
+        OVERFLOW policy = OVERFLOW.BLOCK;
+        String rawPolicy = IOControl.serverWrapper.getProperty("export_admission_policy");
+        if (rawPolicy != null && !rawPolicy.trim().isEmpty()) {
+            try {
+                policy = OVERFLOW.valueOf(rawPolicy.trim());
+            } catch (IllegalArgumentException ex) {
+                IOControl.serverWrapper.log(IOControl.EXPORT_LOGID, 1, "політика переповнення '" + rawPolicy + "' не підтримується системою.");
+            }
+        }
+        if (policy == OVERFLOW.SPILL && !IOControl.canRestoreMessages()) {
+            IOControl.serverWrapper.log(IOControl.EXPORT_LOGID, 1, "політика переповнення SPILL потребує пошуку повідомлень за індексом (getMessage), "
+                    + "який не підтримується сервером; використовується політика BLOCK");
+            policy = OVERFLOW.BLOCK;
+        }
+        return new AdmissionQuene(givenDispatcher, 
+                IOControl.getIntProperty("export_admission_size", 10000), 
+                policy, 
+                new java.io.File(givenDirPath, "export.spill"), 
+                IOControl.getIntProperty("export_admission_threads", 1));
+    }
+    
+    /**
+     * Admit release to the quene according to overflow policy.
+     * @param givenRelease release to admit;
+     * @return true if release was admitted / false if it was dropped or spilled;
+     */
+    boolean admit(Release givenRelease) {
+        if (capacity.tryAcquire()) {
+            quene.add(givenRelease);
+            return true;
+        }
+        switch (policy) {
+            case BLOCK:
+                try {
+                    capacity.acquire();
+                    quene.add(givenRelease);
+                    return true;
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            case SPILL:
+                if (this.spill(givenRelease.message.INDEX)) {
+                    return false;
+                }
+                break;
+            default:
+                break;
+        }
+        rejected.incrementAndGet();
+        IOControl.serverWrapper.log(IOControl.EXPORT_LOGID, 2, "черга експорту переповнена, повідомлення " + givenRelease.message.INDEX + " не буде експортовано");
+        return false;
+    }
+    
+    /**
+     * Write message index to spill file.
+     * @param givenIndex index of message;
+     * @return true if index was written / false if error occured;
+     */
+    private boolean spill(String givenIndex) {
+        synchronized (spillLock) {
+            try {
+                java.nio.file.Files.write(spillFile.toPath(), (givenIndex + "\n").getBytes(java.nio.charset.StandardCharsets.UTF_8), 
+                        java.nio.file.StandardOpenOption.CREATE, java.nio.file.StandardOpenOption.APPEND);
+                spillCount.incrementAndGet();
+                spilled.incrementAndGet();
+                return true;
+            } catch (java.io.IOException ex) {
+                IOControl.serverWrapper.postException("Помилка запису до файлу " + spillFile.getName(), ex);
+                return false;
+            }
+        }
+    }
+    
+    /**
+     * Admit spilled messages again while quene is idle.
+     */
+    private void drainSpill() {
+        java.util.List<String> indexes;
+        synchronized (spillLock) {
+            try {
+                indexes = java.nio.file.Files.readAllLines(spillFile.toPath(), java.nio.charset.StandardCharsets.UTF_8);
+                java.nio.file.Files.delete(spillFile.toPath());
+                spillCount.set(0);
+            } catch (java.io.IOException ex) {
+                IOControl.serverWrapper.postException("Помилка читання файлу " + spillFile.getName(), ex);
+                return;
+            }
+        }
+        for (String currIndex : indexes) {
+            if (currIndex.isEmpty()) {
+                continue;
+            }
+            MessageClasses.Message spilledMessage = IOControl.serverWrapper.getMessage(currIndex);
+            if (spilledMessage == null) {
+                IOControl.serverWrapper.log(IOControl.EXPORT_LOGID, 1, "неможливо відновити відкладене повідомлення " + currIndex);
+            } else {
+                dispatcher.initExport(spilledMessage);
+            }
+        }
+    }
+    
+    /**
+     * Get count of releases waiting in quene.
+     * @return size of quene;
+     */
+    public int getDepth() {
+        return quene.size();
+    }
+    
+    /**
+     * Get count of messages dropped because of full quene.
+     * @return count of messages;
+     */
+    public long getRejected() {
+        return rejected.get();
+    }
+    
+    /**
+     * Get count of messages written to spill file.
+     * @return count of messages;
+     */
+    public long getSpilled() {
+        return spilled.get();
+    }
+    
+    /**
+     * Get count of messages waiting in spill file.
+     * @return count of messages;
+     */
+    public int getSpillDepth() {
+        return spillCount.get();
+    }
+}
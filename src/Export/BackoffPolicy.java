@@ -0,0 +1,96 @@
+/**
+ * This file is part of libRibbonIO library (check README).
+ * Copyright (C) 2012-2013 Stanislav Nepochatov
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+**/
+
+package Export;
+
+/**
+ * Retry backoff policy of export schema. Delay before retry grows 
+ * exponentially from initial delay up to cap, with random jitter.<br>
+ * <br>
+ * Policy reads next options of <code>.export</code> file:<br>
+ * <b>opt_retry_delay</b> - initial delay in seconds (120 by default);<br>
+ * <b>opt_retry_multiplier</b> - delay multiplier (2.0 by default);<br>
+ * <b>opt_retry_max</b> - maximum delay in seconds (3600 by default);<br>
+ * <b>opt_retry_jitter</b> - random part of delay from 0 to 1 (0.1 by default).
+ * @author Stanislav Nepochatov <spoilt.exile@gmail.com>
+ */
+public class BackoffPolicy {
+    
+    /**
+     * Initial delay (milliseconds).
+     */
+    private final long initialDelay;
+    
+    /**
+     * Delay multiplier.
+     */
+    private final double multiplier;
+    
+    /**
+     * Maximum delay (milliseconds).
+     */
+    private final long maxDelay;
+    
+    /**
+     * Random part of delay.
+     */
+    private final double jitter;
+    
+    /**
+     * Default constructor.
+     * @param givenInitialDelay initial delay in milliseconds;
+     * @param givenMultiplier delay multiplier;
+     * @param givenMaxDelay maximum delay in milliseconds;
+     * @param givenJitter random part of delay (0..1);
+     */
+    public BackoffPolicy(long givenInitialDelay, double givenMultiplier, long givenMaxDelay, double givenJitter) {
+        initialDelay = Math.max(givenInitialDelay, 0);
+        multiplier = Math.max(givenMultiplier, 1.0);
+        maxDelay = Math.max(givenMaxDelay, initialDelay);
+        jitter = Math.min(Math.max(givenJitter, 0.0), 1.0);
+    }
+    
+    /**
+     * Build policy from schema options.
+     * @param givenSchema schema to read options from;
+     * @return new policy;
+     */
+    public static BackoffPolicy fromSchema(Schema givenSchema) {
+        return new BackoffPolicy(givenSchema.getIntOption("opt_retry_delay", 2 * 60) * 1000L, 
+                givenSchema.getDoubleOption("opt_retry_multiplier", 2.0), 
+                givenSchema.getIntOption("opt_retry_max", 60 * 60) * 1000L, 
+                givenSchema.getDoubleOption("opt_retry_jitter", 0.1));
+    }
+    
+    /**
+     * Get delay before given retry attempt.
+     * @param givenAttempt number of attempt (starts from 0);
+     * @return delay in milliseconds;
+     */
+    public long getDelay(int givenAttempt) {
+        double delay = initialDelay * Math.pow(multiplier, givenAttempt);
+        if (delay > maxDelay) {
+            delay = maxDelay;
+        }
+        if (jitter > 0) {
+            delay = delay * (1.0 - jitter + 2 * jitter * java.util.concurrent.ThreadLocalRandom.current().nextDouble());
+        }
+        return (long) delay;
+    }
+}
@@ -0,0 +1,321 @@
+/**
+ * This file is part of libRibbonIO library (check README).
+ * Copyright (C) 2012-2013 Stanislav Nepochatov
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+**/
+
+package Export;
+
+import Utils.IOControl;
+
+/**
+ * Export bulkhead: limits count of simultaneously running 
+ * export tasks of single schema and holds the rest in 
+ * bounded quene. Slow schema can't occupy all workers of 
+ * <code>ExportExecutor</code> this way. Waiting tasks are served 
+ * by deadline of their priority (see <code>ExportPriority</code>), 
+ * task keeps its deadline in quene of executor too.
+ * @author Stanislav Nepochatov <spoilt.exile@gmail.com>
+ */
+public class Bulkhead {
+    
+    /**
+     * Default limit of running tasks.
+     */
+    public static final int DEFAULT_MAX_INFLIGHT = 4;
+    
+    /**
+     * Default size of waiting quene.
+     */
+    public static final int DEFAULT_QUENE_DEPTH = 1000;
+    
+    /**
+     * Limit of running tasks.
+     */
+    private final int maxInFlight;
+    
+    /**
+     * Limit of waiting tasks.
+     */
+    private final int queneDepth;
+    
+    /**
+     * Count of running tasks.
+     */
+    private int inFlight = 0;
+    
+    /**
+     * Quene of waiting tasks.
+     */
+    private final java.util.PriorityQueue<Waiting> quene = new java.util.PriorityQueue<>();
+    
+    /**
+     * Sequence for FIFO order of waiting tasks with same deadline.
+     */
+    private long sequence = 0;
+    
+    /**
+     * Count of rejected tasks.
+     */
+    private final java.util.concurrent.atomic.AtomicLong rejected = new java.util.concurrent.atomic.AtomicLong();
+    
+    /**
+     * Delay of next launch attempt after executor rejected task (milliseconds).
+     */
+    private static final long RELAUNCH_DELAY = 100;
+    
+    /**
+     * Executor which was used for last submit 
+     * (used only if there is no registered dispatcher).
+     */
+    private ExportExecutor currExecutor;
+    
+    /**
+     * Default constructor.
+     * @param givenMaxInFlight limit of running tasks;
+     * @param givenQueneDepth limit of waiting tasks;
+     */
+    public Bulkhead(int givenMaxInFlight, int givenQueneDepth) {
+        maxInFlight = givenMaxInFlight;
+        queneDepth = givenQueneDepth;
+    }
+    
+    /**
+     * Submit task with normal priority to execution or place it to the quene.
+     * @param givenTask task to submit;
+     * @param givenExecutor executor to run task on;
+     * @return true if task accepted / false if bulkhead is full;
+     */
+    public boolean submit(Runnable givenTask, ExportExecutor givenExecutor) {
+        return this.submit(givenTask, givenExecutor, ExportPriority.NORMAL);
+    }
+    
+    /**
+     * Submit task to execution or place it to the quene.
+     * @param givenTask task to submit;
+     * @param givenExecutor executor to run task on;
+     * @param givenPriority priority of task;
+     * @return true if task accepted / false if bulkhead is full;
+     */
+    public boolean submit(Runnable givenTask, ExportExecutor givenExecutor, ExportPriority givenPriority) {
+        Waiting newTask;
+        synchronized (this) {
+            currExecutor = givenExecutor;
+            newTask = new Waiting(givenTask, givenPriority.getDeadline(), sequence++);
+            if (inFlight >= maxInFlight) {
+                if (quene.size() < queneDepth) {
+                    quene.add(newTask);
+                    return true;
+                } else {
+                    rejected.incrementAndGet();
+                    return false;
+                }
+            }
+            inFlight++;
+        }
+        this.launch(newTask);
+        return true;
+    }
+    
+    /**
+     * Run task on current executor using already taken slot. If executor 
+     * rejects task then task goes back to quene and slot tries to run 
+     * next waiting task a bit later.
+     * @param givenTask task to run;
+     */
+    private void launch(Waiting givenTask) {
+        if (this.getExecutor().tryExecute(new Slot(givenTask.task), givenTask.deadline)) {
+            return;
+        }
+        synchronized (this) {
+            quene.add(givenTask);
+        }
+        java.util.concurrent.ScheduledExecutorService relaunchTimer = IOControl.dispathcer != null ? IOControl.dispathcer.getTimer() : Bulkhead.getFallbackTimer();
+        relaunchTimer.schedule(new Runnable() {
+
+            @Override
+            public void run() {
+                release();
+            }
+        }, RELAUNCH_DELAY, java.util.concurrent.TimeUnit.MILLISECONDS);
+    }
+    
+    /**
+     * Timer for bulkheads used without dispatcher.
+     */
+    private static java.util.concurrent.ScheduledExecutorService fallbackTimer;
+    
+    /**
+     * Get timer for bulkheads used without dispatcher (creates it on first call).
+     * @return scheduled executor;
+     */
+    private static synchronized java.util.concurrent.ScheduledExecutorService getFallbackTimer() {
+        if (fallbackTimer == null) {
+            fallbackTimer = java.util.concurrent.Executors.newSingleThreadScheduledExecutor(new java.util.concurrent.ThreadFactory() {
+
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread timerThread = new Thread(r, "BulkheadTimer");
+                    timerThread.setDaemon(true);
+                    return timerThread;
+                }
+            });
+        }
+        return fallbackTimer;
+    }
+    
+    /**
+     * Get current executor of export tasks.
+     * @return executor of dispatcher or executor of last submit;
+     */
+    private ExportExecutor getExecutor() {
+        if (IOControl.dispathcer != null && IOControl.dispathcer.getExecutor() != null) {
+            return IOControl.dispathcer.getExecutor();
+        }
+        synchronized (this) {
+            return currExecutor;
+        }
+    }
+    
+    /**
+     * Task waiting in quene.
+     */
+    private static class Waiting implements Comparable<Waiting> {
+        
+        /**
+         * Waiting task.
+         */
+        final Runnable task;
+        
+        /**
+         * Deadline of task.
+         */
+        final long deadline;
+        
+        /**
+         * Order of enqueue.
+         */
+        final long order;
+        
+        /**
+         * Default constructor.
+         * @param givenTask waiting task;
+         * @param givenDeadline deadline of task;
+         * @param givenOrder order of enqueue;
+         */
+        Waiting(Runnable givenTask, long givenDeadline, long givenOrder) {
+            task = givenTask;
+            deadline = givenDeadline;
+            order = givenOrder;
+        }
+
+        @Override
+        public int compareTo(Waiting other) {
+            if (deadline != other.deadline) {
+                return deadline < other.deadline ? -1 : 1;
+            }
+            return order < other.order ? -1 : (order == other.order ? 0 : 1);
+        }
+    }
+    
+    /**
+     * Wrapper of task which releases or reuses bulkhead slot.
+     */
+    private class Slot implements Runnable {
+        
+        /**
+         * Wrapped task.
+         */
+        private final Runnable task;
+        
+        /**
+         * Default constructor.
+         * @param givenTask task to wrap;
+         */
+        Slot(Runnable givenTask) {
+            task = givenTask;
+        }
+
+        @Override
+        public void run() {
+            try {
+                task.run();
+            } finally {
+                release();
+            }
+        }
+    }
+    
+    /**
+     * Pass slot to next waiting task or free it.
+     */
+    private void release() {
+        Waiting nextTask;
+        synchronized (this) {
+            nextTask = quene.poll();
+            if (nextTask == null) {
+                inFlight--;
+                return;
+            }
+        }
+        this.launch(nextTask);
+    }
+    
+    /**
+     * Get count of running tasks.
+     * @return count of tasks;
+     */
+    public synchronized int getInFlight() {
+        return inFlight;
+    }
+    
+    /**
+     * Get count of waiting tasks.
+     * @return count of tasks;
+     */
+    public synchronized int getQueued() {
+        return quene.size();
+    }
+    
+    /**
+     * Get count of tasks rejected because of full quene.
+     * @return count of tasks;
+     */
+    public long getRejected() {
+        return rejected.get();
+    }
+    
+    /**
+     * Get limit of running tasks.
+     * @return limit value;
+     */
+    public int getMaxInFlight() {
+        return maxInFlight;
+    }
+    
+    /**
+     * Get limit of waiting tasks.
+     * @return limit value;
+     */
+    public int getQueneDepth() {
+        return queneDepth;
+    }
+    
+    @Override
+    public synchronized String toString() {
+        return "виконується " + inFlight + "/" + maxInFlight + ", в черзі " + quene.size() + "/" + queneDepth + ", відхилено " + rejected.get();
+    }
+}
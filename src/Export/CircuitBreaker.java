@@ -0,0 +1,240 @@
+/**
+ * This file is part of libRibbonIO library (check README).
+ * Copyright (C) 2012-2013 Stanislav Nepochatov
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+**/
+
+package Export;
+
+import Utils.IOControl;
+
+/**
+ * Circuit breaker of export schema. Breaker counts results of last 
+ * exports and opens when failure rate reaches threshold. While breaker 
+ * is open exports are not attempted and go straight to the retry path 
+ * (whatever <code>opt_em_action</code> of schema is). 
+ * After open time single probe export is allowed: its success closes 
+ * breaker, its failure opens breaker again.<br>
+ * <br>
+ * Breaker reads next options of <code>.export</code> file:<br>
+ * <b>opt_cb_window</b> - count of last exports to count (0 by default, breaker is disabled);<br>
+ * <b>opt_cb_threshold</b> - failure rate in percents to open breaker (50 by default);<br>
+ * <b>opt_cb_open_time</b> - time in seconds before probe export (60 by default).
+ * @author Stanislav Nepochatov <spoilt.exile@gmail.com>
+ */
+public class CircuitBreaker {
+    
+    /**
+     * States of breaker.
+     */
+    public static enum STATE {
+        
+        /**
+         * Exports are allowed.
+         */
+        CLOSED,
+        
+        /**
+         * Exports are not allowed.
+         */
+        OPEN,
+        
+        /**
+         * Single probe export is running.
+         */
+        HALF_OPEN
+    }
+    
+    /**
+     * Name of schema (for log).
+     */
+    private final String schemaName;
+    
+    /**
+     * Results of last exports (true for failure).
+     */
+    private final boolean[] window;
+    
+    /**
+     * Failure rate in percents to open breaker.
+     */
+    private final int threshold;
+    
+    /**
+     * Time before probe export (milliseconds).
+     */
+    private final long openTime;
+    
+    /**
+     * Current state.
+     */
+    private STATE currState = STATE.CLOSED;
+    
+    /**
+     * Next position in window.
+     */
+    private int windowPos = 0;
+    
+    /**
+     * Count of results in window.
+     */
+    private int windowCount = 0;
+    
+    /**
+     * Count of failures in window.
+     */
+    private int failureCount = 0;
+    
+    /**
+     * Time of last state change (milliseconds).
+     */
+    private long stateTime = System.currentTimeMillis();
+    
+    /**
+     * Default constructor.
+     * @param givenName name of schema;
+     * @param givenWindow count of last exports to count (0 disables breaker);
+     * @param givenThreshold failure rate in percents to open breaker;
+     * @param givenOpenTime time before probe export in milliseconds;
+     */
+    public CircuitBreaker(String givenName, int givenWindow, int givenThreshold, long givenOpenTime) {
+        schemaName = givenName;
+        window = new boolean[Math.max(givenWindow, 0)];
+        threshold = givenThreshold;
+        openTime = givenOpenTime;
+    }
+    
+    /**
+     * Build breaker from schema options.
+     * @param givenSchema schema to read options from;
+     * @return new breaker;
+     */
+    public static CircuitBreaker fromSchema(Schema givenSchema) {
+        return new CircuitBreaker(givenSchema.name, 
+                givenSchema.getIntOption("opt_cb_window", 0), 
+                givenSchema.getIntOption("opt_cb_threshold", 50), 
+                givenSchema.getIntOption("opt_cb_open_time", 60) * 1000L);
+    }
+    
+    /**
+     * Find out if export may be attempted now.
+     * @return true if export allowed / false if breaker is open;
+     */
+    public synchronized boolean allowRequest() {
+        if (window.length == 0) {
+            return true;
+        }
+        switch (currState) {
+            case OPEN:
+                if (System.currentTimeMillis() - stateTime >= openTime) {
+                    this.changeState(STATE.HALF_OPEN);
+                    return true;
+                }
+                return false;
+            case HALF_OPEN:
+                //Probe which never reported is considered lost.
+                if (System.currentTimeMillis() - stateTime >= openTime) {
+                    stateTime = System.currentTimeMillis();
+                    return true;
+                }
+                return false;
+            default:
+                return true;
+        }
+    }
+    
+    /**
+     * Record successful export.
+     */
+    public synchronized void recordSuccess() {
+        if (window.length == 0) {
+            return;
+        }
+        if (currState != STATE.CLOSED) {
+            this.resetWindow();
+            this.changeState(STATE.CLOSED);
+        } else {
+            this.record(false);
+        }
+    }
+    
+    /**
+     * Record failed export.
+     */
+    public synchronized void recordFailure() {
+        if (window.length == 0) {
+            return;
+        }
+        if (currState != STATE.CLOSED) {
+            this.changeState(STATE.OPEN);
+            return;
+        }
+        this.record(true);
+        if (windowCount >= (window.length + 1) / 2 && failureCount * 100 >= threshold * windowCount) {
+            this.resetWindow();
+            this.changeState(STATE.OPEN);
+        }
+    }
+    
+    /**
+     * Put result to the window.
+     * @param failed result of export;
+     */
+    private void record(boolean failed) {
+        if (windowCount == window.length) {
+            if (window[windowPos]) {
+                failureCount--;
+            }
+        } else {
+            windowCount++;
+        }
+        window[windowPos] = failed;
+        if (failed) {
+            failureCount++;
+        }
+        windowPos = (windowPos + 1) % window.length;
+    }
+    
+    /**
+     * Clear results window.
+     */
+    private void resetWindow() {
+        java.util.Arrays.fill(window, false);
+        windowPos = 0;
+        windowCount = 0;
+        failureCount = 0;
+    }
+    
+    /**
+     * Change state and log it.
+     * @param givenState new state;
+     */
+    private void changeState(STATE givenState) {
+        if (currState != givenState) {
+            IOControl.serverWrapper.log(IOControl.EXPORT_LOGID + ":" + schemaName, givenState == STATE.OPEN ? 1 : 2, "стан запобіжника схеми: " + givenState);
+        }
+        currState = givenState;
+        stateTime = System.currentTimeMillis();
+    }
+    
+    /**
+     * Get current state of breaker.
+     * @return state;
+     */
+    public synchronized STATE getState() {
+        return currState;
+    }
+}
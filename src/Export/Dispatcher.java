@@ -38,63 +38,75 @@ public class Dispatcher {
     private java.util.ArrayList<Utils.ModuleContainer> moduleList = new java.util.ArrayList<>();
     
     /**
-     * List of export schemas.
+     * Names of export schemas by names of their config files.
+     */
+    private final java.util.concurrent.ConcurrentHashMap<String, String> schemaFiles = new java.util.concurrent.ConcurrentHashMap<>();
+    
+    /**
+     * Watcher of export config dir (or null if hot reload is disabled).
      */
-    private java.util.ArrayList<Schema> schemaList = new java.util.ArrayList<>();
+    private Utils.ConfigWatcher configWatcher;
     
     /**
-     * Error quene.
+     * Current routing table (system directory export subscribes). 
+     * Table is immutable and replaced on each subscription.
      */
-    private final java.util.ArrayList<Exporter> errQuene = new java.util.ArrayList<>();
+    private volatile RoutingTable routing;
     
     /**
-     * Sync lock for error quene.
+     * Count of released messages.
      */
-    private final Object errQueneLock = new Object();
+    private final java.util.concurrent.atomic.AtomicLong releaseCount = new java.util.concurrent.atomic.AtomicLong();
     
     /**
-     * System directory export subscribes.<br>
-     * <br>
-     * Subsribe hash map has next structure:<br>
-     * <b>DIR_NAME, ArrayList(SCHEME_NAME)</b>
+     * Sum of release latencies (milliseconds).
      */
-    private java.util.HashMap<String, java.util.ArrayList<String>> subscribes = new java.util.HashMap();
+    private final java.util.concurrent.atomic.AtomicLong releaseLatencySum = new java.util.concurrent.atomic.AtomicLong();
     
     /**
-     * Current error quene worker thread.
+     * Maximum release latency (milliseconds).
      */
-    private ErrorQueneWorker currWorker = new ErrorQueneWorker();
+    private final java.util.concurrent.atomic.AtomicLong releaseLatencyMax = new java.util.concurrent.atomic.AtomicLong();
     
     /**
-     * Error quene worker thread.
+     * Release latency which will be reported to log (milliseconds).
      */
-    private class ErrorQueneWorker extends Thread {
-        
+    private final long slowReleaseLimit = IOControl.getIntProperty("export_slow_release_ms", 60 * 1000);
+    
+    /**
+     * Timer for delayed export operations (batch flushing etc.).
+     */
+    private final java.util.concurrent.ScheduledThreadPoolExecutor timer = new java.util.concurrent.ScheduledThreadPoolExecutor(1, new java.util.concurrent.ThreadFactory() {
+
         @Override
-        public void run() {
-            while (true) {
-                processErrQuene();
-                try {
-                    Thread.sleep(2 * 60 * 1000);        //Default timeout 2 min will be changed in the feature;
-                } catch (InterruptedException ex) {}
-            }
+        public Thread newThread(Runnable givenTask) {
+            Thread newTimer = new Thread(givenTask, "ExportTimer");
+            newTimer.setDaemon(true);
+            return newTimer;
         }
-        
-        /**
-         * Launch broken export task recovery.
-         */
-        public void processErrQuene() {
-            synchronized (errQueneLock) {
-                for (int index = 0; index < errQuene.size(); index++) {
-                    Exporter curr = errQuene.get(index);
-                    Boolean result = curr.tryRecovery();
-                    if (result) {
-                        errQuene.remove(curr);
-                    }
-                }
-            }
-        }
-    }
+    });
+    
+    /**
+     * Executor for export tasks.
+     */
+    private volatile ExportExecutor executor;
+    
+    /**
+     * Retry scheduler for broken export tasks (error quene).
+     */
+    private final RetryScheduler retryScheduler = new RetryScheduler(this);
+    
+    /**
+     * Admission quene of export pipeline.
+     */
+    private AdmissionQuene admission;
+    
+    /**
+     * Durable journal of error quene (or null if disabled). Journal is 
+     * enabled by <b>export_journal=1</b> server property and needs server 
+     * wrapper which can find messages by index.
+     */
+    private ExportJournal journal;
     
     /**
      * Default constructor.
@@ -103,6 +115,8 @@ public class Dispatcher {
      */
     public Dispatcher(String givenModulePath, String givenDirPath) {
         exportModulePath = givenModulePath;
+        executor = ExportExecutor.fromConfig();
+        timer.setRemoveOnCancelPolicy(true);
         moduleList = Utils.IOControl.loadModules(givenModulePath);
         java.io.File exportPropsDir = new java.io.File(givenDirPath);
         if (!exportPropsDir.exists()) {
@@ -120,24 +134,131 @@ public class Dispatcher {
                 }
             }
         });
-        for (java.io.File exportFile : exportsProps) {
-            java.util.Properties exportConfig = new java.util.Properties();
+        java.util.LinkedHashMap<java.io.File, Schema> loadedSchemas = IOControl.loadSchemaMap(exportsProps, IOControl.EXPORT_LOGID, new Utils.SchemaFactory<Schema>() {
+
+            @Override
+            public Schema create(java.util.Properties givenConfig) {
+                return getNewSchema(givenConfig);
+            }
+        });
+        for (java.util.Map.Entry<java.io.File, Schema> loadedEntry : loadedSchemas.entrySet()) {
+            this.schemaFiles.put(loadedEntry.getKey().getName(), loadedEntry.getValue().name);
+        }
+        if (loadedSchemas.isEmpty()) {
+            Utils.IOControl.serverWrapper.log(Utils.IOControl.EXPORT_LOGID, 2, "система не знайшла жодної схеми экспорту!");
+        }
+        this.routing = new RoutingTable(new java.util.ArrayList<>(loadedSchemas.values()));
+        this.admission = AdmissionQuene.fromConfig(this, givenDirPath);
+        if (IOControl.getIntProperty("export_journal", 0) == 1) {
+            if (!IOControl.canRestoreMessages()) {
+                IOControl.serverWrapper.log(IOControl.EXPORT_LOGID, 1, "сервер не підтримує пошук повідомлень за індексом, записи журналу експорту не буде відновлено до оновлення сервера");
+            }
             try {
-                exportConfig.load(new java.io.FileReader(exportFile));
-            } catch (java.io.FileNotFoundException ex) {
-                Utils.IOControl.serverWrapper.log(Utils.IOControl.EXPORT_LOGID, 1, "неможливо знайти файл " + exportFile.getName());
+                journal = new ExportJournal(new java.io.File(givenDirPath, "export.journal"), IOControl.getIntProperty("export_journal_group_ms", 0));
+                this.replayJournal();
             } catch (java.io.IOException ex) {
-                Utils.IOControl.serverWrapper.log(Utils.IOControl.EXPORT_LOGID, 1, "помилка при зчитуванні файлу " + exportFile.getName());
+                IOControl.serverWrapper.postException("Неможливо відкрити журнал експорту", ex);
+                journal = null;
             }
-            Schema newExport = getNewSchema(exportConfig);
-            if (newExport != null) {
-                this.schemaList.add(newExport);
-            } else {
-                Utils.IOControl.serverWrapper.log(Utils.IOControl.EXPORT_LOGID, 2, "заванатження модулю для " + exportFile.getName() + " завершилось з помилкою.");
+        }
+        this.configWatcher = Utils.ConfigWatcher.watch(exportPropsDir, ".export", new Utils.ConfigWatcher.Listener() {
+
+            @Override
+            public void configChanged(java.util.Set<java.io.File> changedFiles, java.util.Set<java.io.File> removedFiles) {
+                reloadSchemas(changedFiles, removedFiles);
+            }
+        });
+    }
+    
+    /**
+     * Rebuild changed schemas and replace routing table. Exports which 
+     * are already running finish on old versions of schemas, new 
+     * releases use new versions. Schema with broken config keeps its 
+     * old version.
+     * @param changedFiles created or modified config files;
+     * @param removedFiles deleted config files;
+     */
+    public synchronized void reloadSchemas(java.util.Set<java.io.File> changedFiles, java.util.Set<java.io.File> removedFiles) {
+        java.util.ArrayList<String> removedNames = new java.util.ArrayList<>();
+        for (java.io.File removedFile : removedFiles) {
+            String removedName = this.schemaFiles.remove(removedFile.getName());
+            if (removedName != null) {
+                removedNames.add(removedName);
+                IOControl.serverWrapper.log(IOControl.EXPORT_LOGID, 2, "схему експорту '" + removedName + "' видалено");
             }
         }
-        if (this.schemaList.isEmpty()) {
-            Utils.IOControl.serverWrapper.log(Utils.IOControl.EXPORT_LOGID, 2, "система не знайшла жодної схеми экспорту!");
+        java.util.LinkedHashMap<java.io.File, Schema> reloadedSchemas = IOControl.loadSchemaMap(changedFiles.toArray(new java.io.File[changedFiles.size()]), 
+                IOControl.EXPORT_LOGID, new Utils.SchemaFactory<Schema>() {
+
+            @Override
+            public Schema create(java.util.Properties givenConfig) {
+                if (givenConfig.containsKey("export_template")) {
+                    TemplateCache.evict(IOControl.EXPORT_DIR + "/" + givenConfig.getProperty("export_template"));
+                }
+                return getNewSchema(givenConfig);
+            }
+        });
+        java.util.ArrayList<Schema> changedSchemas = new java.util.ArrayList<>();
+        for (java.io.File changedFile : changedFiles) {
+            Schema newSchema = reloadedSchemas.get(changedFile);
+            if (newSchema == null) {
+                if (this.schemaFiles.containsKey(changedFile.getName())) {
+                    IOControl.serverWrapper.log(IOControl.EXPORT_LOGID, 1, "схему з файлу " + changedFile.getName() + " не оновлено, використовується попередня версія");
+                }
+                continue;
+            }
+            String oldName = this.schemaFiles.put(changedFile.getName(), newSchema.name);
+            if (oldName != null && !oldName.equals(newSchema.name)) {
+                removedNames.add(oldName);
+            }
+            changedSchemas.add(newSchema);
+            IOControl.serverWrapper.log(IOControl.EXPORT_LOGID, 2, "схему експорту '" + newSchema.name + "' оновлено");
+        }
+        if (!changedSchemas.isEmpty() || !removedNames.isEmpty()) {
+            this.routing = this.routing.withSchemas(changedSchemas, removedNames);
+        }
+    }
+    
+    /**
+     * Place pending exports from journal to retry scheduler. Records 
+     * which can't be restored now (server can't find message) are kept 
+     * in journal for next start, records of removed schemas are dropped.
+     */
+    private void replayJournal() throws java.io.IOException {
+        java.util.List<ExportJournal.Entry> pending = journal.getRecovered();
+        int restoredCount = 0;
+        for (ExportJournal.Entry currEntry : pending) {
+            Schema currSchema = this.routing.getSchema(currEntry.schema);
+            if (currSchema == null) {
+                IOControl.serverWrapper.log(IOControl.EXPORT_LOGID, 1, "схеми " + currEntry.schema + " не існує, експорт повідомлення " + currEntry.index + " видалено з журналу");
+                journal.complete(currEntry.id);
+                continue;
+            }
+            MessageClasses.Message currMessage = IOControl.serverWrapper.getMessage(currEntry.index);
+            Exporter restored = null;
+            String payload = null;
+            if (currMessage != null) {
+                restored = currSchema.getNewExportTask(currMessage, new ReleaseSwitch(currEntry.index), currEntry.dirs);
+                try {
+                    payload = journal.readPayload(currEntry);
+                } catch (java.io.IOException ex) {
+                    restored = null;
+                }
+            }
+            if (restored == null || payload == null) {
+                IOControl.serverWrapper.log(IOControl.EXPORT_LOGID, 1, "неможливо відновити експорт повідомлення " + currEntry.index + " за схемою " + currEntry.schema + ", запис залишено в журналі");
+                continue;
+            }
+            restored.exportedContent = payload;
+            restored.journalId = currEntry.id;
+            if (currEntry.dirty) {
+                restored.raiseDirty();
+            }
+            this.addToQuene(restored);
+            restoredCount++;
+        }
+        if (restoredCount > 0) {
+            IOControl.serverWrapper.log(IOControl.EXPORT_LOGID, 2, "з журналу відновлено завдань експорту: " + restoredCount);
         }
     }
     
@@ -146,7 +267,7 @@ public class Dispatcher {
      * @param givenSchemas array with schemas names;
      * @param givenDirName name of directory;
      */
-    public void subscribeDir(String[] givenSchemas, String givenDirName) {
+    public synchronized void subscribeDir(String[] givenSchemas, String givenDirName) {
 	if (givenSchemas == null) {
 	    return;
 	}
@@ -155,30 +276,15 @@ public class Dispatcher {
             if (currScheme.isEmpty()) {
                 continue;
             }
-            if (isSchemaExists(currScheme)) {
+            if (this.routing.hasSchema(currScheme)) {
                 putList.add(currScheme);
             } else {
                 IOControl.serverWrapper.log(IOControl.EXPORT_LOGID, 2, "схему експорту " + currScheme + " не існує (" + givenDirName + ")");
             }
         }
         if (!putList.isEmpty()) {
-            this.subscribes.put(givenDirName, putList);
-        }
-    }
-    
-    /**
-     * Find out if schema existed.
-     * @param givenSchema schema to search;
-     * @return true if existed / false if not.
-     */
-    private Boolean isSchemaExists(String givenSchema) {
-        java.util.ListIterator<Schema> shIter = this.schemaList.listIterator();
-        while (shIter.hasNext()) {
-            if (shIter.next().name.equals(givenSchema)) {
-                return true;
-            }
+            this.routing = this.routing.withSubscription(givenDirName, putList.toArray(new String[putList.size()]));
         }
-        return false;
     }
     
     /**
@@ -210,8 +316,9 @@ public class Dispatcher {
      * @return true if export needed / false if no subscriptions.
      */
     public Boolean checkExport(String[] givenDirs) {
+        RoutingTable currRouting = this.routing;
         for (String currDir : givenDirs) {
-            if (this.subscribes.containsKey(currDir)) {
+            if (currRouting.isRouted(currDir)) {
                 return true;
             }
         }
@@ -221,43 +328,205 @@ public class Dispatcher {
     /**
      * Init export sequence.
      * @param exportedMessage message to export;
+     * @return release switch of message (completion handle) or null if message wasn't exported;
      */
-    public void initExport(MessageClasses.Message exportedMessage) {
+    public ReleaseSwitch initExport(MessageClasses.Message exportedMessage) {
         if (exportedMessage.getProperty("PROCESSING_FORBIDDEN") != null) {
             IOControl.serverWrapper.log(IOControl.EXPORT_LOGID, 2, "повідомлення " + exportedMessage.INDEX + " заборонено випускати з системи");
-            return;
+            return null;
         }
-        if (!currWorker.isAlive()) {
-            currWorker.start();
+        retryScheduler.start();
+        java.util.LinkedHashMap<Schema, java.util.ArrayList<String>> fanOut = this.routing.resolve(exportedMessage.DIRS);
+        if (fanOut.isEmpty()) {
+            return null;
         }
-        ReleaseSwitch newSwitch = new ReleaseSwitch(exportedMessage.INDEX);
-        for (String currDir : exportedMessage.DIRS) {
-            if (this.subscribes.containsKey(currDir)) {
-                newSwitch.addSchemas(subscribes.get(currDir));
-                java.util.ListIterator<String> schemeIter = subscribes.get(currDir).listIterator();
-                while (schemeIter.hasNext()) {
-                    Schema currSchema = this.getScheme(schemeIter.next());
-                    Exporter newExport = currSchema.getNewExportTask(exportedMessage, newSwitch, currDir);
-                    newExport.start();
-                }
+        final ReleaseSwitch newSwitch = new ReleaseSwitch(exportedMessage.INDEX);
+        newSwitch.addListener(new Runnable() {
+
+            @Override
+            public void run() {
+                recordRelease(newSwitch);
+            }
+        });
+        java.util.ArrayList<String> schemaNames = new java.util.ArrayList<>(fanOut.size());
+        for (Schema currSchema : fanOut.keySet()) {
+            schemaNames.add(currSchema.name);
+        }
+        newSwitch.addSchemas(schemaNames);
+        if (!admission.admit(new AdmissionQuene.Release(exportedMessage, newSwitch, fanOut))) {
+            return null;
+        }
+        return newSwitch;
+    }
+    
+    /**
+     * Create export tasks for admitted release and pass them to schemas.
+     * @param givenRelease admitted release;
+     */
+    void fanOut(AdmissionQuene.Release givenRelease) {
+        for (java.util.Map.Entry<Schema, java.util.ArrayList<String>> currRoute : givenRelease.fanOut.entrySet()) {
+            Schema currSchema = currRoute.getKey();
+            java.util.ArrayList<String> currDirs = currRoute.getValue();
+            Exporter newExport = currSchema.getNewExportTask(givenRelease.message, givenRelease.releaseSwitch, currDirs.toArray(new String[currDirs.size()]));
+            if (newExport == null) {
+                givenRelease.releaseSwitch.markSchema(currSchema.name);
+            } else if (currSchema.currCoalescer != null) {
+                currSchema.currCoalescer.add(newExport, this);
+            } else {
+                this.forward(currSchema, newExport);
             }
         }
     }
     
     /**
-     * Get scheme by name.
-     * @param givenName scheme's name;
-     * @return scheme or null.
+     * Get admission quene of export pipeline (for depth and rejection counters).
+     * @return admission quene;
+     */
+    public AdmissionQuene getAdmission() {
+        return admission;
+    }
+    
+    /**
+     * Pass export task to schema's batcher or bulkhead.
+     * @param givenSchema schema of task;
+     * @param givenExport task to pass;
      */
-    private Schema getScheme(String givenName) {
-        java.util.ListIterator<Schema> schemeIter = this.schemaList.listIterator();
-        while (schemeIter.hasNext()) {
-            Schema currScheme = schemeIter.next();
-            if (currScheme.name.equals(givenName)) {
-                return currScheme;
+    void forward(Schema givenSchema, Exporter givenExport) {
+        if (givenSchema.currBatcher != null && givenExport.supportsBatch()) {
+            givenSchema.currBatcher.add(givenExport, this);
+        } else {
+            this.dispatch(givenSchema, givenExport, java.util.Collections.singletonList(givenExport));
+        }
+    }
+    
+    /**
+     * Pass batch of export tasks to schema's bulkhead.
+     * @param givenSchema schema of tasks;
+     * @param givenBatch tasks to export;
+     */
+    void dispatchBatch(Schema givenSchema, final java.util.List<Exporter> givenBatch) {
+        this.dispatch(givenSchema, new Runnable() {
+
+            @Override
+            public void run() {
+                Exporter.runBatch(givenBatch);
             }
+        }, givenBatch);
+    }
+    
+    /**
+     * Submit task to schema's bulkhead or place exports to error quene if bulkhead is full.
+     * @param givenSchema schema of task;
+     * @param givenTask task to run;
+     * @param givenExports exports of the task;
+     */
+    private void dispatch(Schema givenSchema, Runnable givenTask, java.util.List<Exporter> givenExports) {
+        ExportPriority taskPriority = ExportPriority.LOW;
+        for (Exporter currExport : givenExports) {
+            taskPriority = ExportPriority.max(taskPriority, currExport.priority);
         }
-        return null;
+        if (!givenSchema.currBulkhead.submit(givenTask, executor, taskPriority)) {
+            for (Exporter currExport : givenExports) {
+                if (!currExport.claim()) {
+                    continue;
+                }
+                IOControl.serverWrapper.log(IOControl.EXPORT_LOGID + ":" + givenSchema.name, 2, "черга схеми переповнена, повідомлення " + currExport.exportedMessage.INDEX + " відкладено до черги помилок");
+                this.addToQuene(currExport);
+                currExport.currSwitch.markSchema(givenSchema.name);
+            }
+        }
+    }
+    
+    /**
+     * Get timer for delayed export operations.
+     * @return scheduled executor;
+     */
+    java.util.concurrent.ScheduledExecutorService getTimer() {
+        return timer;
+    }
+    
+    /**
+     * Record release latency of message.
+     * @param givenSwitch released switch;
+     */
+    private void recordRelease(ReleaseSwitch givenSwitch) {
+        long latency = givenSwitch.getLatency();
+        releaseCount.incrementAndGet();
+        releaseLatencySum.addAndGet(latency);
+        long currMax = releaseLatencyMax.get();
+        while (latency > currMax && !releaseLatencyMax.compareAndSet(currMax, latency)) {
+            currMax = releaseLatencyMax.get();
+        }
+        if (latency >= slowReleaseLimit) {
+            IOControl.serverWrapper.log(IOControl.EXPORT_LOGID, 2, "повідомлення " + givenSwitch.getIndex() + " випущено за " + latency + " мс");
+        }
+    }
+    
+    /**
+     * Get count of released messages.
+     * @return count of messages;
+     */
+    public long getReleaseCount() {
+        return releaseCount.get();
+    }
+    
+    /**
+     * Get average time from export init to release of message.
+     * @return latency in milliseconds;
+     */
+    public long getAverageReleaseLatency() {
+        long count = releaseCount.get();
+        return count == 0 ? 0 : releaseLatencySum.get() / count;
+    }
+    
+    /**
+     * Get maximum time from export init to release of message.
+     * @return latency in milliseconds;
+     */
+    public long getMaxReleaseLatency() {
+        return releaseLatencyMax.get();
+    }
+    
+    /**
+     * Get current export executor.
+     * @return executor of export tasks;
+     */
+    public ExportExecutor getExecutor() {
+        return executor;
+    }
+    
+    /**
+     * Replace export executor (previous one will be shut down).
+     * @param givenExecutor new executor of export tasks;
+     */
+    public void setExecutor(ExportExecutor givenExecutor) {
+        ExportExecutor oldExecutor = executor;
+        executor = givenExecutor;
+        oldExecutor.shutdown();
+    }
+    
+    /**
+     * Get occupancy of schemas bulkheads.
+     * @return map with schema names and their bulkheads;
+     */
+    public java.util.Map<String, Bulkhead> getBulkheads() {
+        java.util.LinkedHashMap<String, Bulkhead> bulkheads = new java.util.LinkedHashMap<>();
+        for (Schema currSchema : this.routing.getSchemas()) {
+            bulkheads.put(currSchema.name, currSchema.currBulkhead);
+        }
+        return bulkheads;
+    }
+    
+    /**
+     * Get text report about bulkheads occupancy.
+     * @return report with one line per schema;
+     */
+    public String getBulkheadStatus() {
+        StringBuilder statusBuf = new StringBuilder();
+        for (java.util.Map.Entry<String, Bulkhead> currEntry : this.getBulkheads().entrySet()) {
+            statusBuf.append(currEntry.getKey()).append(": ").append(currEntry.getValue()).append('\n');
+        }
+        return statusBuf.toString();
     }
     
     /**
@@ -265,8 +534,36 @@ public class Dispatcher {
      * @param brokenExport exporter object;
      */
     public void addToQuene(Exporter brokenExport) {
-        synchronized (errQueneLock) {
-            this.errQuene.add(brokenExport);
+        if (journal != null && brokenExport.journalId < 0) {
+            try {
+                brokenExport.journalId = journal.append(brokenExport);
+            } catch (java.io.IOException ex) {
+                IOControl.serverWrapper.postException("Помилка запису до журналу експорту", ex);
+            }
+        }
+        retryScheduler.start();
+        retryScheduler.schedule(brokenExport);
+    }
+    
+    /**
+     * Remove recovered export task from journal.
+     * @param recoveredExport exporter object;
+     */
+    void exportRecovered(Exporter recoveredExport) {
+        if (journal != null && recoveredExport.journalId >= 0) {
+            try {
+                journal.complete(recoveredExport.journalId);
+            } catch (java.io.IOException ex) {
+                IOControl.serverWrapper.postException("Помилка запису до журналу експорту", ex);
+            }
         }
     }
+    
+    /**
+     * Get count of broken export tasks waiting for retry.
+     * @return size of error quene;
+     */
+    public int getErrQueneSize() {
+        return retryScheduler.size();
+    }
 }
@@ -0,0 +1,153 @@
+/**
+ * This file is part of libRibbonIO library (check README).
+ * Copyright (C) 2012-2013 Stanislav Nepochatov
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+**/
+
+package Export;
+
+/**
+ * Export batcher of schema. Batcher gathers export tasks of the 
+ * schema and passes them to module as single batch when batch 
+ * size is reached or linger time since first task is expired.<br>
+ * <br>
+ * Batcher reads next options of <code>.export</code> file:<br>
+ * <b>opt_batch_size</b> - maximum size of batch (batching is disabled if less than 2);<br>
+ * <b>opt_batch_linger</b> - maximum waiting time of the first task in milliseconds (200 by default).
+ * @author Stanislav Nepochatov <spoilt.exile@gmail.com>
+ */
+public class ExportBatcher {
+    
+    /**
+     * Schema of this batcher.
+     */
+    private final Schema schema;
+    
+    /**
+     * Maximum size of batch.
+     */
+    private final int maxSize;
+    
+    /**
+     * Maximum waiting time of the first task (milliseconds).
+     */
+    private final long linger;
+    
+    /**
+     * Gathered tasks.
+     */
+    private java.util.ArrayList<Exporter> pending = new java.util.ArrayList<>();
+    
+    /**
+     * Scheduled flush of gathered tasks.
+     */
+    private java.util.concurrent.ScheduledFuture<?> flushTask;
+    
+    /**
+     * Dispatcher to pass batches to.
+     */
+    private Dispatcher dispatcher;
+    
+    /**
+     * Default constructor.
+     * @param givenSchema schema of batcher;
+     * @param givenMaxSize maximum size of batch;
+     * @param givenLinger maximum waiting time of the first task in milliseconds;
+     */
+    public ExportBatcher(Schema givenSchema, int givenMaxSize, long givenLinger) {
+        schema = givenSchema;
+        maxSize = givenMaxSize;
+        linger = givenLinger;
+    }
+    
+    /**
+     * Build batcher from schema options.
+     * @param givenSchema schema to read options from;
+     * @return new batcher or null if batching is disabled;
+     */
+    public static ExportBatcher fromSchema(Schema givenSchema) {
+        int size = givenSchema.getIntOption("opt_batch_size", 0);
+        if (size < 2) {
+            return null;
+        }
+        return new ExportBatcher(givenSchema, size, givenSchema.getIntOption("opt_batch_linger", 200));
+    }
+    
+    /**
+     * Add task to the batch.
+     * @param givenExport task to add;
+     * @param givenDispatcher dispatcher to pass batch to;
+     */
+    public void add(Exporter givenExport, Dispatcher givenDispatcher) {
+        java.util.ArrayList<Exporter> ready = null;
+        synchronized (this) {
+            dispatcher = givenDispatcher;
+            pending.add(givenExport);
+            if (pending.size() >= maxSize) {
+                ready = this.takePending();
+            } else if (pending.size() == 1) {
+                flushTask = givenDispatcher.getTimer().schedule(new Runnable() {
+
+                    @Override
+                    public void run() {
+                        flush();
+                    }
+                }, linger, java.util.concurrent.TimeUnit.MILLISECONDS);
+            }
+        }
+        if (ready != null) {
+            givenDispatcher.dispatchBatch(schema, ready);
+        }
+    }
+    
+    /**
+     * Pass gathered tasks to dispatcher.
+     */
+    public void flush() {
+        java.util.ArrayList<Exporter> ready;
+        Dispatcher currDispatcher;
+        synchronized (this) {
+            if (pending.isEmpty()) {
+                return;
+            }
+            ready = this.takePending();
+            currDispatcher = dispatcher;
+        }
+        currDispatcher.dispatchBatch(schema, ready);
+    }
+    
+    /**
+     * Take gathered tasks and cancel scheduled flush (caller holds lock).
+     * @return gathered tasks;
+     */
+    private java.util.ArrayList<Exporter> takePending() {
+        java.util.ArrayList<Exporter> ready = pending;
+        pending = new java.util.ArrayList<>();
+        if (flushTask != null) {
+            flushTask.cancel(false);
+            flushTask = null;
+        }
+        return ready;
+    }
+    
+    /**
+     * Get count of gathered tasks.
+     * @return count of tasks;
+     */
+    public synchronized int size() {
+        return pending.size();
+    }
+}
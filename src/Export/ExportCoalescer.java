@@ -0,0 +1,138 @@
+/**
+ * This file is part of libRibbonIO library (check README).
+ * Copyright (C) 2012-2013 Stanislav Nepochatov
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+**/
+
+package Export;
+
+import Utils.IOControl;
+
+/**
+ * Export coalescer of schema. If message is released again while its 
+ * previous export task is still waiting (in debounce window, batch or 
+ * bulkhead quene), previous task is dropped and only newer one will 
+ * be exported.<br>
+ * <br>
+ * Coalescer reads next options of <code>.export</code> file:<br>
+ * <b>opt_coalesce</b> - enable coalescing (1 to enable);<br>
+ * <b>opt_coalesce_window</b> - time in milliseconds to hold new task before 
+ * dispatching (0 by default, task is dispatched immediately).
+ * @author Stanislav Nepochatov <spoilt.exile@gmail.com>
+ */
+public class ExportCoalescer {
+    
+    /**
+     * Schema of this coalescer.
+     */
+    private final Schema schema;
+    
+    /**
+     * Debounce window (milliseconds).
+     */
+    private final long window;
+    
+    /**
+     * Latest not started task by message index.
+     */
+    private final java.util.concurrent.ConcurrentHashMap<String, Exporter> latest = new java.util.concurrent.ConcurrentHashMap<>();
+    
+    /**
+     * Indexes of messages in debounce window.
+     */
+    private final java.util.HashSet<String> debouncing = new java.util.HashSet<>();
+    
+    /**
+     * Count of dropped tasks.
+     */
+    private final java.util.concurrent.atomic.AtomicLong coalesced = new java.util.concurrent.atomic.AtomicLong();
+    
+    /**
+     * Default constructor.
+     * @param givenSchema schema of coalescer;
+     * @param givenWindow debounce window in milliseconds;
+     */
+    public ExportCoalescer(Schema givenSchema, long givenWindow) {
+        schema = givenSchema;
+        window = givenWindow;
+    }
+    
+    /**
+     * Build coalescer from schema options.
+     * @param givenSchema schema to read options from;
+     * @return new coalescer or null if coalescing is disabled;
+     */
+    public static ExportCoalescer fromSchema(Schema givenSchema) {
+        if (!"1".equals(givenSchema.currConfig.getProperty("opt_coalesce"))) {
+            return null;
+        }
+        return new ExportCoalescer(givenSchema, givenSchema.getIntOption("opt_coalesce_window", 0));
+    }
+    
+    /**
+     * Add new task: drop waiting task of the same message and 
+     * pass new one further (at once or after debounce window).
+     * @param givenExport new task;
+     * @param givenDispatcher dispatcher to pass task to;
+     */
+    public void add(Exporter givenExport, final Dispatcher givenDispatcher) {
+        final String index = givenExport.exportedMessage.INDEX;
+        Exporter previous = latest.put(index, givenExport);
+        if (previous != null && previous.claim()) {
+            coalesced.incrementAndGet();
+            IOControl.serverWrapper.log(IOControl.EXPORT_LOGID + ":" + schema.name, 3, "попередній експорт повідомлення " + index + " замінено новим випуском");
+            previous.currSwitch.markSchema(schema.name);
+        }
+        if (window <= 0) {
+            givenDispatcher.forward(schema, givenExport);
+            return;
+        }
+        synchronized (debouncing) {
+            if (!debouncing.add(index)) {
+                return;
+            }
+        }
+        givenDispatcher.getTimer().schedule(new Runnable() {
+
+            @Override
+            public void run() {
+                synchronized (debouncing) {
+                    debouncing.remove(index);
+                }
+                Exporter ready = latest.get(index);
+                if (ready != null) {
+                    givenDispatcher.forward(schema, ready);
+                }
+            }
+        }, window, java.util.concurrent.TimeUnit.MILLISECONDS);
+    }
+    
+    /**
+     * Forget task which was started.
+     * @param givenExport started task;
+     */
+    void started(Exporter givenExport) {
+        latest.remove(givenExport.exportedMessage.INDEX, givenExport);
+    }
+    
+    /**
+     * Get count of dropped tasks.
+     * @return count of tasks;
+     */
+    public long getCoalesced() {
+        return coalesced.get();
+    }
+}
@@ -0,0 +1,226 @@
+/**
+ * This file is part of libRibbonIO library (check README).
+ * Copyright (C) 2012-2013 Stanislav Nepochatov
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+**/
+
+package Export;
+
+import Utils.IOControl;
+
+/**
+ * Export execution engine. Runs export tasks on bounded pool 
+ * of worker threads with bounded task quene. If quene is full 
+ * (or executor is shut down) task is rejected and caller keeps 
+ * it for later, so thread count stays flat however large export 
+ * fan-out is and exports never run on caller's thread.<br>
+ * <br>
+ * Quene is shared by all schemas and serves tasks by deadline 
+ * of their priority (see <code>ExportPriority</code>), so urgent task 
+ * doesn't wait behind routine tasks of other schemas, while routine 
+ * task which waited longer than its slack goes first.
+ * @author Stanislav Nepochatov <spoilt.exile@gmail.com>
+ */
+public class ExportExecutor {
+    
+    /**
+     * Default count of worker threads.
+     */
+    public static final int DEFAULT_POOL_SIZE = Runtime.getRuntime().availableProcessors() * 2;
+    
+    /**
+     * Default size of task quene.
+     */
+    public static final int DEFAULT_QUENE_SIZE = 1000;
+    
+    /**
+     * Worker pool itself.
+     */
+    private final java.util.concurrent.ThreadPoolExecutor pool;
+    
+    /**
+     * Free places of task quene.
+     */
+    private final java.util.concurrent.Semaphore capacity;
+    
+    /**
+     * Sequence for FIFO order of tasks with same deadline.
+     */
+    private final java.util.concurrent.atomic.AtomicLong sequence = new java.util.concurrent.atomic.AtomicLong();
+    
+    /**
+     * Default constructor.
+     * @param givenPoolSize count of worker threads;
+     * @param givenQueneSize size of task quene;
+     */
+    public ExportExecutor(int givenPoolSize, int givenQueneSize) {
+        capacity = new java.util.concurrent.Semaphore(givenQueneSize);
+        pool = new java.util.concurrent.ThreadPoolExecutor(givenPoolSize, givenPoolSize, 
+                60, java.util.concurrent.TimeUnit.SECONDS, 
+                new java.util.concurrent.PriorityBlockingQueue<Runnable>(), 
+                new WorkerFactory(), 
+                new java.util.concurrent.ThreadPoolExecutor.AbortPolicy());
+        pool.allowCoreThreadTimeOut(true);
+    }
+    
+    /**
+     * Task with deadline, frees place of quene when it starts.
+     */
+    private class Prioritized implements Runnable, Comparable<Prioritized> {
+        
+        /**
+         * Wrapped task.
+         */
+        private final Runnable task;
+        
+        /**
+         * Deadline of task.
+         */
+        private final long deadline;
+        
+        /**
+         * Order of submit.
+         */
+        private final long order;
+        
+        /**
+         * Default constructor.
+         * @param givenTask task to wrap;
+         * @param givenDeadline deadline of task;
+         */
+        Prioritized(Runnable givenTask, long givenDeadline) {
+            task = givenTask;
+            deadline = givenDeadline;
+            order = sequence.incrementAndGet();
+        }
+
+        @Override
+        public void run() {
+            capacity.release();
+            task.run();
+        }
+
+        @Override
+        public int compareTo(Prioritized other) {
+            if (deadline != other.deadline) {
+                return deadline < other.deadline ? -1 : 1;
+            }
+            return order < other.order ? -1 : (order == other.order ? 0 : 1);
+        }
+    }
+    
+    /**
+     * Worker thread factory.
+     */
+    private static class WorkerFactory implements java.util.concurrent.ThreadFactory {
+        
+        /**
+         * Counter of created workers.
+         */
+        private final java.util.concurrent.atomic.AtomicInteger counter = new java.util.concurrent.atomic.AtomicInteger();
+        
+        @Override
+        public Thread newThread(Runnable givenTask) {
+            Thread newWorker = new Thread(givenTask, "ExportWorker-" + counter.incrementAndGet());
+            newWorker.setDaemon(true);
+            return newWorker;
+        }
+    }
+    
+    /**
+     * Build executor with sizes from server config 
+     * (<code>export_pool_size</code> and <code>export_quene_size</code>).
+     * @return new executor;
+     */
+    public static ExportExecutor fromConfig() {
+        return new ExportExecutor(IOControl.getIntProperty("export_pool_size", DEFAULT_POOL_SIZE), 
+                IOControl.getIntProperty("export_quene_size", DEFAULT_QUENE_SIZE));
+    }
+    
+    /**
+     * Execute export task with normal priority.
+     * @param givenTask task to execute;
+     * @throws java.util.concurrent.RejectedExecutionException if quene is full or executor is shut down;
+     */
+    public void execute(Runnable givenTask) {
+        this.execute(givenTask, ExportPriority.NORMAL.getDeadline());
+    }
+    
+    /**
+     * Execute export task.
+     * @param givenTask task to execute;
+     * @param givenDeadline deadline of task (see <code>ExportPriority.getDeadline</code>);
+     * @throws java.util.concurrent.RejectedExecutionException if quene is full or executor is shut down;
+     */
+    public void execute(Runnable givenTask, long givenDeadline) {
+        if (!capacity.tryAcquire()) {
+            throw new java.util.concurrent.RejectedExecutionException("черга експорту переповнена");
+        }
+        try {
+            pool.execute(new Prioritized(givenTask, givenDeadline));
+        } catch (java.util.concurrent.RejectedExecutionException ex) {
+            capacity.release();
+            throw ex;
+        }
+    }
+    
+    /**
+     * Try to execute export task with normal priority.
+     * @param givenTask task to execute;
+     * @return true if task was accepted / false if quene is full or executor is shut down;
+     */
+    public boolean tryExecute(Runnable givenTask) {
+        return this.tryExecute(givenTask, ExportPriority.NORMAL.getDeadline());
+    }
+    
+    /**
+     * Try to execute export task.
+     * @param givenTask task to execute;
+     * @param givenDeadline deadline of task (see <code>ExportPriority.getDeadline</code>);
+     * @return true if task was accepted / false if quene is full or executor is shut down;
+     */
+    public boolean tryExecute(Runnable givenTask, long givenDeadline) {
+        try {
+            this.execute(givenTask, givenDeadline);
+            return true;
+        } catch (java.util.concurrent.RejectedExecutionException ex) {
+            return false;
+        }
+    }
+    
+    /**
+     * Get count of workers which are running tasks now.
+     * @return count of active workers;
+     */
+    public int getActiveCount() {
+        return pool.getActiveCount();
+    }
+    
+    /**
+     * Get count of tasks waiting in quene.
+     * @return size of quene;
+     */
+    public int getQueneSize() {
+        return pool.getQueue().size();
+    }
+    
+    /**
+     * Stop accepting new tasks and finish already queued ones.
+     */
+    public void shutdown() {
+        pool.shutdown();
+    }
+}
@@ -0,0 +1,484 @@
+/**
+ * This file is part of libRibbonIO library (check README).
+ * Copyright (C) 2012-2013 Stanislav Nepochatov
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+**/
+
+package Export;
+
+import Utils.IOControl;
+
+/**
+ * Append-only memory-mapped journal of broken export tasks. Each 
+ * broken export is recorded with schema name, message index, called 
+ * dirs, flag of raised <code>DIRTY</code> state and rendered payload; 
+ * record is marked done after successful retry. Only positions of 
+ * pending records are kept in memory, payload is read from mapped file 
+ * on replay. Journal is replayed to retry scheduler at startup and 
+ * compacted when there are no more pending records.<br>
+ * <br>
+ * Record format: <b>length, crc32, type, id, body</b>. Zero length 
+ * marks end of journal.
+ * @author Stanislav Nepochatov <spoilt.exile@gmail.com>
+ */
+public class ExportJournal {
+    
+    /**
+     * Type of record about broken export.
+     */
+    private static final byte REC_ADD = 1;
+    
+    /**
+     * Type of record about finished export.
+     */
+    private static final byte REC_DONE = 2;
+    
+    /**
+     * Initial size of mapped region.
+     */
+    private static final int INITIAL_SIZE = 1024 * 1024;
+    
+    /**
+     * Size of record header (length and crc).
+     */
+    private static final int HEADER_SIZE = 8;
+    
+    /**
+     * Journal file.
+     */
+    private final java.io.File journalFile;
+    
+    /**
+     * Channel of journal file.
+     */
+    private java.nio.channels.FileChannel channel;
+    
+    /**
+     * Mapped region of journal file.
+     */
+    private java.nio.MappedByteBuffer buffer;
+    
+    /**
+     * Next record id.
+     */
+    private long nextId = 1;
+    
+    /**
+     * Positions of pending records by id.
+     */
+    private final java.util.LinkedHashMap<Long, Span> live = new java.util.LinkedHashMap<>();
+    
+    /**
+     * Size of pending records.
+     */
+    private long liveBytes = 0;
+    
+    /**
+     * Pending entries found at opening.
+     */
+    private final java.util.ArrayList<Entry> recovered = new java.util.ArrayList<>();
+    
+    /**
+     * Group commit interval in milliseconds (0 - force every write).
+     */
+    private final long groupCommit;
+    
+    /**
+     * Flag of unforced writes.
+     */
+    private volatile boolean unforced = false;
+    
+    /**
+     * Position of record in journal.
+     */
+    private static class Span {
+        
+        /**
+         * Offset of record (header included).
+         */
+        int offset;
+        
+        /**
+         * Length of record (header included).
+         */
+        final int length;
+        
+        /**
+         * Default constructor.
+         * @param givenOffset offset of record;
+         * @param givenLength length of record;
+         */
+        Span(int givenOffset, int givenLength) {
+            offset = givenOffset;
+            length = givenLength;
+        }
+    }
+    
+    /**
+     * Pending journal entry.
+     */
+    public static class Entry {
+        
+        /**
+         * Id of record.
+         */
+        public final long id;
+        
+        /**
+         * Name of export schema.
+         */
+        public final String schema;
+        
+        /**
+         * Index of message.
+         */
+        public final String index;
+        
+        /**
+         * Called dirs of export.
+         */
+        public final String[] dirs;
+        
+        /**
+         * Flag of <code>DIRTY</code> state raised by broken export.
+         */
+        public final boolean dirty;
+        
+        /**
+         * Default constructor.
+         * @param givenId id of record;
+         * @param givenSchema name of schema;
+         * @param givenIndex index of message;
+         * @param givenDirs called dirs;
+         * @param givenDirty flag of raised <code>DIRTY</code> state;
+         */
+        Entry(long givenId, String givenSchema, String givenIndex, String[] givenDirs, boolean givenDirty) {
+            id = givenId;
+            schema = givenSchema;
+            index = givenIndex;
+            dirs = givenDirs;
+            dirty = givenDirty;
+        }
+    }
+    
+    /**
+     * Open journal and read pending records.
+     * @param givenFile journal file;
+     * @param givenGroupCommit group commit interval in milliseconds (0 - force every write);
+     * @throws java.io.IOException if journal can't be opened;
+     */
+    public ExportJournal(java.io.File givenFile, long givenGroupCommit) throws java.io.IOException {
+        journalFile = givenFile;
+        groupCommit = givenGroupCommit;
+        this.map();
+        this.scan();
+        if (groupCommit > 0) {
+            Thread flusher = new Thread(new Runnable() {
+
+                @Override
+                public void run() {
+                    while (true) {
+                        try {
+                            Thread.sleep(groupCommit);
+                        } catch (InterruptedException ex) {
+                            return;
+                        }
+                        if (unforced) {
+                            force();
+                        }
+                    }
+                }
+            }, "ExportJournalFlusher");
+            flusher.setDaemon(true);
+            flusher.start();
+        }
+    }
+    
+    /**
+     * Open channel and map journal file.
+     * @throws java.io.IOException if file can't be mapped;
+     */
+    private void map() throws java.io.IOException {
+        channel = java.nio.channels.FileChannel.open(journalFile.toPath(), 
+                java.nio.file.StandardOpenOption.CREATE, 
+                java.nio.file.StandardOpenOption.READ, 
+                java.nio.file.StandardOpenOption.WRITE);
+        long size = Math.max(channel.size(), INITIAL_SIZE);
+        buffer = channel.map(java.nio.channels.FileChannel.MapMode.READ_WRITE, 0, size);
+    }
+    
+    /**
+     * Read records from start of journal to first broken or empty record.
+     */
+    private void scan() {
+        java.util.LinkedHashMap<Long, Entry> pending = new java.util.LinkedHashMap<>();
+        buffer.position(0);
+        while (buffer.remaining() >= HEADER_SIZE) {
+            int start = buffer.position();
+            int length = buffer.getInt();
+            int crc = buffer.getInt();
+            if (length <= 0 || length > buffer.remaining()) {
+                buffer.position(start);
+                break;
+            }
+            byte[] body = new byte[length];
+            buffer.get(body);
+            java.util.zip.CRC32 checksum = new java.util.zip.CRC32();
+            checksum.update(body);
+            if ((int) checksum.getValue() != crc) {
+                IOControl.serverWrapper.log(IOControl.EXPORT_LOGID, 1, "журнал експорту пошкоджено, зчитування зупинено");
+                buffer.position(start);
+                break;
+            }
+            try {
+                java.io.DataInputStream bodyStream = new java.io.DataInputStream(new java.io.ByteArrayInputStream(body));
+                byte type = bodyStream.readByte();
+                long id = bodyStream.readLong();
+                nextId = Math.max(nextId, id + 1);
+                if (type == REC_ADD) {
+                    String schema = bodyStream.readUTF();
+                    String index = bodyStream.readUTF();
+                    String[] dirs = new String[bodyStream.readInt()];
+                    for (int dirIndex = 0; dirIndex < dirs.length; dirIndex++) {
+                        dirs[dirIndex] = bodyStream.readUTF();
+                    }
+                    boolean dirty = bodyStream.readBoolean();
+                    pending.put(id, new Entry(id, schema, index, dirs, dirty));
+                    live.put(id, new Span(start, HEADER_SIZE + length));
+                    liveBytes += HEADER_SIZE + length;
+                } else if (type == REC_DONE) {
+                    pending.remove(id);
+                    Span record = live.remove(id);
+                    if (record != null) {
+                        liveBytes -= record.length;
+                    }
+                }
+            } catch (java.io.IOException ex) {
+                IOControl.serverWrapper.log(IOControl.EXPORT_LOGID, 1, "некоректний запис журналу експорту, зчитування зупинено");
+                buffer.position(start);
+                break;
+            }
+        }
+        recovered.addAll(pending.values());
+    }
+    
+    /**
+     * Get pending entries found at opening.
+     * @return list of entries;
+     */
+    public synchronized java.util.List<Entry> getRecovered() {
+        return new java.util.ArrayList<>(recovered);
+    }
+    
+    /**
+     * Read rendered payload of pending entry from journal.
+     * @param givenEntry pending entry;
+     * @return payload or null if entry is already done;
+     * @throws java.io.IOException if record is broken;
+     */
+    public synchronized String readPayload(Entry givenEntry) throws java.io.IOException {
+        Span record = live.get(givenEntry.id);
+        if (record == null) {
+            return null;
+        }
+        byte[] body = new byte[record.length - HEADER_SIZE];
+        java.nio.ByteBuffer recordView = buffer.duplicate();
+        recordView.position(record.offset + HEADER_SIZE);
+        recordView.get(body);
+        java.io.DataInputStream bodyStream = new java.io.DataInputStream(new java.io.ByteArrayInputStream(body));
+        bodyStream.readByte();
+        bodyStream.readLong();
+        bodyStream.readUTF();
+        bodyStream.readUTF();
+        int dirCount = bodyStream.readInt();
+        for (int dirIndex = 0; dirIndex < dirCount; dirIndex++) {
+            bodyStream.readUTF();
+        }
+        bodyStream.readBoolean();
+        byte[] payload = new byte[bodyStream.readInt()];
+        bodyStream.readFully(payload);
+        return new String(payload, java.nio.charset.StandardCharsets.UTF_8);
+    }
+    
+    /**
+     * Record broken export task.
+     * @param givenExporter broken export task;
+     * @return id of record;
+     * @throws java.io.IOException if record can't be written;
+     */
+    public long append(Exporter givenExporter) throws java.io.IOException {
+        String payload = givenExporter.renderContent();
+        String[] dirs = givenExporter.calledDirs;
+        long id;
+        synchronized (this) {
+            id = nextId++;
+            java.io.ByteArrayOutputStream bodyBytes = new java.io.ByteArrayOutputStream(payload.length() + 128);
+            java.io.DataOutputStream bodyStream = new java.io.DataOutputStream(bodyBytes);
+            bodyStream.writeByte(REC_ADD);
+            bodyStream.writeLong(id);
+            bodyStream.writeUTF(givenExporter.currSchema.name);
+            bodyStream.writeUTF(givenExporter.exportedMessage.INDEX);
+            bodyStream.writeInt(dirs.length);
+            for (String currDir : dirs) {
+                bodyStream.writeUTF(currDir);
+            }
+            bodyStream.writeBoolean(givenExporter.isDirtyRaised());
+            byte[] payloadBytes = payload.getBytes(java.nio.charset.StandardCharsets.UTF_8);
+            bodyStream.writeInt(payloadBytes.length);
+            bodyStream.write(payloadBytes);
+            bodyStream.flush();
+            byte[] body = bodyBytes.toByteArray();
+            live.put(id, new Span(this.write(body), HEADER_SIZE + body.length));
+            liveBytes += HEADER_SIZE + body.length;
+        }
+        this.commit();
+        return id;
+    }
+    
+    /**
+     * Mark record as done and compact journal if possible.
+     * @param givenId id of record;
+     * @throws java.io.IOException if record can't be written;
+     */
+    public void complete(long givenId) throws java.io.IOException {
+        synchronized (this) {
+            Span record = live.remove(givenId);
+            if (record == null) {
+                return;
+            }
+            liveBytes -= record.length;
+            if (live.isEmpty()) {
+                buffer.position(0);
+                buffer.putInt(0, 0);
+            } else {
+                java.io.ByteArrayOutputStream bodyBytes = new java.io.ByteArrayOutputStream(16);
+                java.io.DataOutputStream bodyStream = new java.io.DataOutputStream(bodyBytes);
+                bodyStream.writeByte(REC_DONE);
+                bodyStream.writeLong(givenId);
+                bodyStream.flush();
+                this.write(bodyBytes.toByteArray());
+                if (buffer.position() > INITIAL_SIZE && buffer.position() > liveBytes * 4) {
+                    this.compact();
+                }
+            }
+        }
+        this.commit();
+    }
+    
+    /**
+     * Write record at current position (caller holds lock).
+     * @param givenBody body of record;
+     * @return offset of record;
+     * @throws java.io.IOException if journal can't be grown;
+     */
+    private int write(byte[] givenBody) throws java.io.IOException {
+        java.util.zip.CRC32 checksum = new java.util.zip.CRC32();
+        checksum.update(givenBody);
+        java.nio.ByteBuffer record = java.nio.ByteBuffer.allocate(HEADER_SIZE + givenBody.length);
+        record.putInt(givenBody.length);
+        record.putInt((int) checksum.getValue());
+        record.put(givenBody);
+        byte[] recordBytes = record.array();
+        if (buffer.remaining() < recordBytes.length + 4) {
+            this.grow(recordBytes.length + 4);
+        }
+        int offset = buffer.position();
+        buffer.put(recordBytes);
+        buffer.putInt(buffer.position(), 0);
+        unforced = true;
+        return offset;
+    }
+    
+    /**
+     * Remap journal with larger size (caller holds lock).
+     * @param givenNeeded count of bytes needed;
+     * @throws java.io.IOException if file can't be mapped;
+     */
+    private void grow(int givenNeeded) throws java.io.IOException {
+        int position = buffer.position();
+        long size = buffer.capacity();
+        while (size - position < givenNeeded) {
+            size *= 2;
+        }
+        buffer.force();
+        buffer = channel.map(java.nio.channels.FileChannel.MapMode.READ_WRITE, 0, size);
+        buffer.position(position);
+    }
+    
+    /**
+     * Rewrite journal with pending records only (caller holds lock).
+     * @throws java.io.IOException if journal can't be rewritten;
+     */
+    private void compact() throws java.io.IOException {
+        java.io.File tempFile = new java.io.File(journalFile.getPath() + ".tmp");
+        try (java.nio.channels.FileChannel tempChannel = java.nio.channels.FileChannel.open(tempFile.toPath(), 
+                java.nio.file.StandardOpenOption.CREATE, 
+                java.nio.file.StandardOpenOption.TRUNCATE_EXISTING, 
+                java.nio.file.StandardOpenOption.WRITE)) {
+            int newOffset = 0;
+            for (Span currRecord : live.values()) {
+                java.nio.ByteBuffer recordBuf = buffer.duplicate();
+                recordBuf.limit(currRecord.offset + currRecord.length);
+                recordBuf.position(currRecord.offset);
+                while (recordBuf.hasRemaining()) {
+                    tempChannel.write(recordBuf);
+                }
+                currRecord.offset = newOffset;
+                newOffset += currRecord.length;
+            }
+            java.nio.ByteBuffer endMark = java.nio.ByteBuffer.allocate(4);
+            while (endMark.hasRemaining()) {
+                tempChannel.write(endMark);
+            }
+            tempChannel.force(true);
+        }
+        channel.close();
+        java.nio.file.Files.move(tempFile.toPath(), journalFile.toPath(), 
+                java.nio.file.StandardCopyOption.REPLACE_EXISTING, 
+                java.nio.file.StandardCopyOption.ATOMIC_MOVE);
+        this.map();
+        buffer.position((int) liveBytes);
+    }
+    
+    /**
+     * Force writes to disk now or leave them to group commit.
+     */
+    private void commit() {
+        if (groupCommit <= 0) {
+            this.force();
+        }
+    }
+    
+    /**
+     * Force mapped region to disk.
+     */
+    private void force() {
+        java.nio.MappedByteBuffer currBuffer;
+        synchronized (this) {
+            unforced = false;
+            currBuffer = buffer;
+        }
+        currBuffer.force();
+    }
+    
+    /**
+     * Get count of pending records.
+     * @return count of records;
+     */
+    public synchronized int size() {
+        return live.size();
+    }
+}
@@ -0,0 +1,121 @@
+/**
+ * This file is part of libRibbonIO library (check README).
+ * Copyright (C) 2012-2013 Stanislav Nepochatov
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+**/
+
+package Export;
+
+/**
+ * Priority classes of export. Quenes of export pipeline serve tasks 
+ * by deadline which is enqueue time plus slack of priority class, so 
+ * urgent tasks go first but routine ones are never starved: routine 
+ * task which waited longer than its slack goes before new urgent tasks.<br>
+ * <br>
+ * Priority of export is the highest of message priority (property 
+ * <code>PRIORITY</code> with class name as text) and schema priority 
+ * (option <code>opt_priority</code>, not set by default). Export is 
+ * <code>NORMAL</code> if none of them is set.
+ * @author Stanislav Nepochatov <spoilt.exile@gmail.com>
+ */
+public enum ExportPriority {
+    
+    /**
+     * Breaking news: served at once.
+     */
+    URGENT(0),
+    
+    /**
+     * Important messages: may wait up to 5 seconds behind urgent ones.
+     */
+    HIGH(5 * 1000),
+    
+    /**
+     * Routine messages: may wait up to 30 seconds behind higher ones.
+     */
+    NORMAL(30 * 1000),
+    
+    /**
+     * Bulk messages: may wait up to 2 minutes behind higher ones.
+     */
+    LOW(2 * 60 * 1000);
+    
+    /**
+     * Slack of priority class (milliseconds).
+     */
+    public final long slack;
+    
+    /**
+     * Default constructor.
+     * @param givenSlack slack in milliseconds;
+     */
+    private ExportPriority(long givenSlack) {
+        slack = givenSlack;
+    }
+    
+    /**
+     * Get deadline of task enqueued now.
+     * @return deadline in milliseconds of <code>System.nanoTime</code> scale;
+     */
+    public long getDeadline() {
+        return java.util.concurrent.TimeUnit.NANOSECONDS.toMillis(System.nanoTime()) + slack;
+    }
+    
+    /**
+     * Parse priority class name.
+     * @param givenName name of class;
+     * @param defaultPriority priority to return if name is empty or unknown;
+     * @return priority;
+     */
+    public static ExportPriority parse(String givenName, ExportPriority defaultPriority) {
+        if (givenName == null || givenName.trim().isEmpty()) {
+            return defaultPriority;
+        }
+        try {
+            return ExportPriority.valueOf(givenName.trim().toUpperCase());
+        } catch (IllegalArgumentException ex) {
+            return defaultPriority;
+        }
+    }
+    
+    /**
+     * Get priority of message from its <code>PRIORITY</code> property.
+     * @param givenMessage message to check;
+     * @return priority or null if message has no priority;
+     */
+    public static ExportPriority ofMessage(MessageClasses.Message givenMessage) {
+        MessageClasses.MessageProperty priorityProp = givenMessage.getProperty("PRIORITY");
+        if (priorityProp == null) {
+            return null;
+        }
+        return ExportPriority.parse(priorityProp.TEXT_MESSAGE, null);
+    }
+    
+    /**
+     * Get more urgent of two priorities.
+     * @param first first priority (may be null);
+     * @param second second priority (may be null);
+     * @return more urgent priority;
+     */
+    public static ExportPriority max(ExportPriority first, ExportPriority second) {
+        if (first == null) {
+            return second;
+        } else if (second == null) {
+            return first;
+        }
+        return first.ordinal() <= second.ordinal() ? first : second;
+    }
+}
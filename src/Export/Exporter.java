@@ -22,10 +22,11 @@ package Export;
 import Utils.IOControl;
 
 /**
- * Export single operation thread class.
+ * Export single operation task class. Tasks are executed 
+ * by dispatcher's <code>ExportExecutor</code>.
  * @author Stanislav Nepochatov <spoilt.exile@gmail.com>
  */
-public abstract class Exporter extends Thread {
+public abstract class Exporter implements Runnable {
     
     /**
      * Current export scheme.
@@ -42,10 +43,18 @@ public abstract class Exporter extends Thread {
      */
     protected String calledDir;
     
+    /**
+     * All dirs of message which are subscribed to current schema 
+     * (<code>calledDir</code> is the first one).
+     */
+    protected String[] calledDirs;
+    
     /**
      * Exported message itself. You should use 
      * this variable instead of <code>CONTENT</code> 
-     * field in message.
+     * field in message. It's <code>null</code> for schemas 
+     * with <code>opt_streaming=1</code> option, use 
+     * <code>writeContent</code> methods there.
      */
     protected String exportedContent;
     
@@ -59,6 +68,26 @@ public abstract class Exporter extends Thread {
      */
     protected String exportedCharset = "UTF-8";
     
+    /**
+     * Flag of <code>DIRTY</code> state raised by this task.
+     */
+    private boolean dirtyRaised = false;
+    
+    /**
+     * Id of record in export journal (or -1 if task isn't journaled).
+     */
+    long journalId = -1;
+    
+    /**
+     * Priority of this task.
+     */
+    final ExportPriority priority;
+    
+    /**
+     * Flag of task which was started or dropped by coalescer.
+     */
+    private final java.util.concurrent.atomic.AtomicBoolean claimed = new java.util.concurrent.atomic.AtomicBoolean(false);
+    
     /**
      * Default constructor.
      * @param givenMessage message to export;
@@ -71,64 +100,276 @@ public abstract class Exporter extends Thread {
         currSwitch = givenSwitch;
         exportedMessage = givenMessage;
         calledDir = givenDir;
-        if (currSchema.currFormater !=null) {
-            exportedContent = currSchema.currFormater.format(exportedMessage, calledDir);
-        } else {
-            exportedContent = exportedMessage.CONTENT;
-        }
+        calledDirs = new String[] {givenDir};
+        priority = currSchema.getPriority(givenMessage);
         if (currSchema.currConfig.getProperty("opt_charset") != null) {
             exportedCharset = currSchema.currConfig.getProperty("opt_charset");
         }
+        if ("1".equals(currSchema.currConfig.getProperty("opt_streaming"))) {
+            return;
+        }
+        if (currSchema.getFormater() != null) {
+            exportedContent = TemplateCache.render(currSchema.getFormater(), exportedMessage, calledDir, givenSwitch);
+        } else {
+            exportedContent = exportedMessage.CONTENT;
+        }
     }
     
     @Override
     public void run() {
-        try {
-            doExport();
-            if ("1".equals(this.currSchema.currConfig.getProperty("opt_log"))) {
-                IOControl.serverWrapper.log(IOControl.EXPORT_LOGID + ":" + this.currSchema.name, 3, "прозведено експорт повідомлення " + this.exportedMessage.INDEX);
-            }
-            exportedMessage.PROPERTIES.add(new MessageClasses.MessageProperty("EXPORT_" + this.currSchema.currConfig.getProperty("export_type"), "root", this.currSchema.currConfig.getProperty("export_print")));
-        } catch (Exception ex) {
-            //IOControl.serverWrapper.enableDirtyState(this.currSchema.type, this.currSchema.name, this.currSchema.currConfig.getProperty("export_print"));
-            IOControl.serverWrapper.postException("Помилка експорту: схема " + this.currSchema.name
-                    + " тип " + this.currSchema.type
-                    + "\nПовідомлення " + this.exportedMessage.HEADER + " за індексом " + this.exportedMessage.INDEX, ex);
-            switch (this.currSchema.currAction) {
-                case PLACE_ERRQ_DIRTY:
-                    IOControl.serverWrapper.enableDirtyState(this.currSchema.type, this.currSchema.name, this.currSchema.currConfig.getProperty("export_print"));
-                    IOControl.dispathcer.addToQuene(this);
-                    break;
-                case DROP_WARN: 
-                    IOControl.serverWrapper.log(IOControl.EXPORT_LOGID + ":" + this.currSchema.name, 1, "експорт повідомлення '" + this.exportedMessage.HEADER + "' завершився помилкою.");
-                    break;
-                case DROP_SILENT:   //Do nothing
-                    break;
+        if (!this.claim()) {
+            return;
+        }
+        if (!this.currSchema.currBreaker.allowRequest()) {
+            IOControl.dispathcer.addToQuene(this);
+        } else {
+            try {
+                doExport();
+                this.currSchema.currBreaker.recordSuccess();
+                this.markExported();
+            } catch (Exception ex) {
+                this.currSchema.currBreaker.recordFailure();
+                IOControl.serverWrapper.postException("Помилка експорту: схема " + this.currSchema.name
+                        + " тип " + this.currSchema.type
+                        + "\nПовідомлення " + this.exportedMessage.HEADER + " за індексом " + this.exportedMessage.INDEX, ex);
+                this.applyEmergencyAction();
             }
         }
         this.currSwitch.markSchema(this.currSchema.name);
     }
     
+    /**
+     * Run batch of export tasks of the same schema with single 
+     * <code>doExportBatch</code> call of the first task. Each task 
+     * of the batch is logged and marked in its own release switch.
+     * @param givenTasks tasks to export;
+     */
+    static void runBatch(java.util.List<Exporter> givenTasks) {
+        java.util.ArrayList<Exporter> givenBatch = new java.util.ArrayList<>(givenTasks.size());
+        for (Exporter currExport : givenTasks) {
+            if (currExport.claim()) {
+                givenBatch.add(currExport);
+            }
+        }
+        if (givenBatch.isEmpty()) {
+            return;
+        }
+        Exporter leader = givenBatch.get(0);
+        Schema batchSchema = leader.currSchema;
+        if (!batchSchema.currBreaker.allowRequest()) {
+            for (Exporter currExport : givenBatch) {
+                IOControl.dispathcer.addToQuene(currExport);
+            }
+        } else {
+            try {
+                leader.doExportBatch(givenBatch);
+                batchSchema.currBreaker.recordSuccess();
+                for (Exporter currExport : givenBatch) {
+                    currExport.markExported();
+                }
+            } catch (Exception ex) {
+                batchSchema.currBreaker.recordFailure();
+                IOControl.serverWrapper.postException("Помилка пакетного експорту: схема " + batchSchema.name
+                        + " тип " + batchSchema.type
+                        + "\nПовідомлень у пакеті: " + givenBatch.size() + ", перше за індексом " + leader.exportedMessage.INDEX, ex);
+                for (Exporter currExport : givenBatch) {
+                    currExport.applyEmergencyAction();
+                }
+            }
+        }
+        for (Exporter currExport : givenBatch) {
+            currExport.currSwitch.markSchema(batchSchema.name);
+        }
+    }
+    
+    /**
+     * Claim task for single execution. Claimed task won't be 
+     * started again or replaced by coalescer.
+     * @return true if task was claimed by this call / false if it was claimed before;
+     */
+    boolean claim() {
+        if (!claimed.compareAndSet(false, true)) {
+            return false;
+        }
+        if (this.currSchema.currCoalescer != null) {
+            this.currSchema.currCoalescer.started(this);
+        }
+        return true;
+    }
+    
+    /**
+     * Log export and add export property to the message.
+     */
+    private void markExported() {
+        if ("1".equals(this.currSchema.currConfig.getProperty("opt_log"))) {
+            IOControl.serverWrapper.log(IOControl.EXPORT_LOGID + ":" + this.currSchema.name, 3, "прозведено експорт повідомлення " + this.exportedMessage.INDEX);
+        }
+        exportedMessage.PROPERTIES.add(new MessageClasses.MessageProperty("EXPORT_" + this.currSchema.currConfig.getProperty("export_type"), "root", this.currSchema.currConfig.getProperty("export_print")));
+    }
+    
+    /**
+     * Apply schema's emergency action to failed (or not attempted) export.
+     */
+    private void applyEmergencyAction() {
+        switch (this.currSchema.currAction) {
+            case PLACE_ERRQ_DIRTY:
+                this.raiseDirty();
+                IOControl.dispathcer.addToQuene(this);
+                break;
+            case DROP_WARN: 
+                IOControl.serverWrapper.log(IOControl.EXPORT_LOGID + ":" + this.currSchema.name, 1, "експорт повідомлення '" + this.exportedMessage.HEADER + "' завершився помилкою.");
+                break;
+            case DROP_SILENT:   //Do nothing
+                break;
+        }
+    }
+    
+    /**
+     * Enable <code>DIRTY</code> state of the server for this task.
+     */
+    void raiseDirty() {
+        IOControl.serverWrapper.enableDirtyState(this.currSchema.type, this.currSchema.name, this.currSchema.currConfig.getProperty("export_print"));
+        this.dirtyRaised = true;
+    }
+    
+    /**
+     * Check if this task raised <code>DIRTY</code> state.
+     * @return true if state is raised;
+     */
+    boolean isDirtyRaised() {
+        return this.dirtyRaised;
+    }
+    
+    /**
+     * Get exported content as string (render it for streaming schemas).
+     * @return exported content;
+     */
+    String renderContent() {
+        if (this.exportedContent != null) {
+            return this.exportedContent;
+        } else if (this.currSchema.getFormater() != null) {
+            return this.currSchema.getFormater().format(this.exportedMessage, this.calledDir);
+        } else {
+            return this.exportedMessage.CONTENT;
+        }
+    }
+    
+    /**
+     * Adapter for code written against thread-based exporter: 
+     * pass this task to schema's bulkhead instead 
+     * of spawning new thread.
+     */
+    public void start() {
+        IOControl.dispathcer.forward(currSchema, this);
+    }
+    
+    /**
+     * Write exported content to character stream. If schema has 
+     * <code>opt_streaming=1</code> option then content is formatted 
+     * directly into the writer and <code>exportedContent</code> is 
+     * never built.
+     * @param givenWriter writer to write to;
+     * @throws java.io.IOException if writer can't be written;
+     */
+    protected void writeContent(java.io.Writer givenWriter) throws java.io.IOException {
+        if (this.exportedContent != null) {
+            givenWriter.write(this.exportedContent);
+        } else if (this.currSchema.getFormater() != null) {
+            this.currSchema.getFormater().format(this.exportedMessage, this.calledDir, givenWriter);
+        } else {
+            givenWriter.write(this.exportedMessage.CONTENT);
+        }
+        givenWriter.flush();
+    }
+    
+    /**
+     * Write exported content to byte stream in export charset.
+     * @param givenStream stream to write to (will be flushed but not closed);
+     * @throws java.io.IOException if stream can't be written;
+     * @see #writeContent(java.io.Writer) 
+     */
+    protected void writeContent(java.io.OutputStream givenStream) throws java.io.IOException {
+        java.nio.charset.Charset charset = java.nio.charset.Charset.forName(this.exportedCharset);
+        if (this.exportedContent == null && this.currSchema.getFormater() != null) {
+            this.currSchema.getFormater().format(this.exportedMessage, this.calledDir, givenStream, charset);
+        } else {
+            this.writeContent(new java.io.BufferedWriter(new java.io.OutputStreamWriter(givenStream, charset)));
+        }
+    }
+    
+    /**
+     * Encode exported content into byte buffer in export charset.
+     * @param givenBuffer buffer to reuse (may be null);
+     * @return flipped buffer with content (given one or new larger buffer);
+     * @throws java.nio.charset.CharacterCodingException if content can't be encoded;
+     */
+    protected java.nio.ByteBuffer getContentBuffer(java.nio.ByteBuffer givenBuffer) throws java.nio.charset.CharacterCodingException {
+        java.nio.charset.Charset charset = java.nio.charset.Charset.forName(this.exportedCharset);
+        if (this.exportedContent == null && this.currSchema.getFormater() != null) {
+            return this.currSchema.getFormater().format(this.exportedMessage, this.calledDir, givenBuffer, charset);
+        }
+        String content = this.exportedContent != null ? this.exportedContent : this.exportedMessage.CONTENT;
+        java.nio.ByteBuffer encoded = charset.newEncoder()
+                .onMalformedInput(java.nio.charset.CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(java.nio.charset.CodingErrorAction.REPLACE)
+                .encode(java.nio.CharBuffer.wrap(content));
+        if (givenBuffer != null && givenBuffer.capacity() >= encoded.remaining()) {
+            givenBuffer.clear();
+            givenBuffer.put(encoded);
+            givenBuffer.flip();
+            return givenBuffer;
+        }
+        return encoded;
+    }
+    
     /**
      * Body of export method.
      */
     protected abstract void doExport() throws Exception;
     
+    /**
+     * Find out if module exports batches in single session. Override 
+     * it together with <code>doExportBatch</code> to enable batching 
+     * for schemas with <code>opt_batch_size</code> option.
+     * @return true if batch export is supported / false if not;
+     */
+    protected boolean supportsBatch() {
+        return false;
+    }
+    
+    /**
+     * Body of batch export method. Called on the first task of the batch, 
+     * all tasks belong to the same schema. Batch is considered failed 
+     * if method throws exception.
+     * @param givenBatch tasks to export (including this one);
+     * @throws Exception if batch export failed;
+     */
+    protected void doExportBatch(java.util.List<Exporter> givenBatch) throws Exception {
+        for (Exporter currExport : givenBatch) {
+            currExport.doExport();
+        }
+    }
+    
     /**
      * Try to recover current export task.
      * @return result of recovery operation;
      */
     public Boolean tryRecovery() {
+        if (!this.currSchema.currBreaker.allowRequest()) {
+            return false;
+        }
         try {
             this.doExport();
-            if ("1".equals(this.currSchema.currConfig.getProperty("opt_log"))) {
-                IOControl.serverWrapper.log(IOControl.EXPORT_LOGID + ":" + this.currSchema.name, 3, "прозведено експорт повідомлення " + this.exportedMessage.INDEX);
-            }
-            exportedMessage.PROPERTIES.add(new MessageClasses.MessageProperty("EXPORT_" + this.currSchema.currConfig.getProperty("export_type"), "root", this.currSchema.currConfig.getProperty("export_print")));
+            this.currSchema.currBreaker.recordSuccess();
+            this.markExported();
             IOControl.serverWrapper.updateIndex(this.exportedMessage.INDEX);
-            IOControl.serverWrapper.disableDirtyState(this.currSchema.type, this.currSchema.name, this.currSchema.currConfig.getProperty("export_print"));
+            if (this.dirtyRaised) {
+                IOControl.serverWrapper.disableDirtyState(this.currSchema.type, this.currSchema.name, this.currSchema.currConfig.getProperty("export_print"));
+                this.dirtyRaised = false;
+            }
             return true;
         } catch (Exception ex) {
+            this.currSchema.currBreaker.recordFailure();
             return false;
         }
     }
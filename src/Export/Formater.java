@@ -20,7 +20,9 @@
 package Export;
 
 /**
- * Message formater class for export.
+ * Message formater class for export. Template is compiled once 
+ * into immutable list of segments, so single formater instance 
+ * may be used by many threads at once.
  * @author Stanislav Nepochatov <spoilt.exile@gmail.com>
  */
 public class Formater {
@@ -30,24 +32,19 @@ public class Formater {
     /**
      * Current template string.
      */
-    private String currTemplate;
+    private final String currTemplate;
     
     /**
-     * Current formatting message.
+     * Compiled template segments.
      */
-    private MessageClasses.Message currMessage;
+    private final Segment[] segments;
     
     /**
-     * Current called directory.
+     * Length of all literal segments.
      */
-    private String currCalledDir;
+    private final int literalLength;
     
-    /**
-     * Current template char array;
-     */
-    private char[] templateChar;
-    
-    private java.util.Properties schemaProp;
+    private final java.util.Properties schemaProp;
     
     /**
      * Default constructor.
@@ -56,6 +53,22 @@ public class Formater {
     public Formater(java.util.Properties givenProp, String givenTemplate) {
         this.currTemplate = givenTemplate;
         this.schemaProp = givenProp;
+        this.segments = Formater.compile(givenTemplate);
+        int length = 0;
+        for (Segment currSegment : this.segments) {
+            if (currSegment.op == null) {
+                length += currSegment.text.length();
+            }
+        }
+        this.literalLength = length;
+    }
+    
+    /**
+     * Get template string of this formater.
+     * @return template string;
+     */
+    public String getTemplate() {
+        return this.currTemplate;
     }
     
     /**
@@ -65,54 +78,259 @@ public class Formater {
      * @return formated string.
      */
     public String format(MessageClasses.Message givenMessage, String calledDir) {
-        this.currCalledDir = calledDir;
-        this.currMessage = givenMessage;
-        if (this.templateChar == null) {
-            this.templateChar = this.currTemplate.toCharArray();
+        int capacity = this.literalLength;
+        if (givenMessage.CONTENT != null) {
+            capacity += givenMessage.CONTENT.length();
         }
-        StringBuffer formatBuf = new StringBuffer();
-        for (Integer charIndex = 0; charIndex < templateChar.length; charIndex++) {
-            if (templateChar[charIndex] != '$') {
-                formatBuf.append(templateChar[charIndex]);
+        StringBuilder formatBuf = new StringBuilder(capacity + 256);
+        try {
+            this.format(givenMessage, calledDir, formatBuf);
+        } catch (java.io.IOException ex) {
+            //StringBuilder never throws IOException.
+        }
+        return formatBuf.toString();
+    }
+    
+    /**
+     * Write formatted message content to the given appendable 
+     * (<code>Writer</code>, <code>StringBuilder</code> etc.) 
+     * segment by segment without building whole string.
+     * @param givenMessage message to format;
+     * @param calledDir message dir;
+     * @param givenOut appendable to write to;
+     * @throws java.io.IOException if output can't be written;
+     */
+    public void format(MessageClasses.Message givenMessage, String calledDir, Appendable givenOut) throws java.io.IOException {
+        for (Segment currSegment : this.segments) {
+            if (currSegment.op == null) {
+                givenOut.append(currSegment.text);
             } else {
-                Integer endIndex = getKeyEnd(charIndex);
-                String keyWord = extractKeyword(charIndex + 1, endIndex);
-                charIndex = endIndex - 1;
-                formatBuf.append(Formater.getByKeyword(keyWord, this));
+                currSegment.op.process(givenMessage, calledDir, givenOut);
             }
         }
-        this.currCalledDir = null;
-        this.currMessage = null;
-        return formatBuf.toString();
     }
     
     /**
-     * Return index of end of keyword.
-     * @param givenIndex index for serch from;
-     * @return index of last char of the keyword;
+     * Encode formatted message content directly to output stream.
+     * @param givenMessage message to format;
+     * @param calledDir message dir;
+     * @param givenStream stream to write to (will be flushed but not closed);
+     * @param givenCharset charset of output;
+     * @throws java.io.IOException if stream can't be written;
+     */
+    public void format(MessageClasses.Message givenMessage, String calledDir, java.io.OutputStream givenStream, java.nio.charset.Charset givenCharset) throws java.io.IOException {
+        java.io.Writer streamWriter = new java.io.BufferedWriter(new java.io.OutputStreamWriter(givenStream, givenCharset));
+        this.format(givenMessage, calledDir, streamWriter);
+        streamWriter.flush();
+    }
+    
+    /**
+     * Encode formatted message content directly to byte buffer.
+     * @param givenMessage message to format;
+     * @param calledDir message dir;
+     * @param givenBuffer buffer to reuse (may be null);
+     * @param givenCharset charset of output;
+     * @return flipped buffer with encoded content (given one or new larger buffer);
+     * @throws java.nio.charset.CharacterCodingException if content can't be encoded;
      */
-    private Integer getKeyEnd(Integer givenIndex) {
-        for (Integer endIndex = givenIndex + 1; endIndex < this.templateChar.length; endIndex++) {
-            if (templateChar[endIndex] == ' ' || templateChar[endIndex] == '\r' || templateChar[endIndex] == '\n') {
-                return endIndex;
+    public java.nio.ByteBuffer format(MessageClasses.Message givenMessage, String calledDir, java.nio.ByteBuffer givenBuffer, java.nio.charset.Charset givenCharset) throws java.nio.charset.CharacterCodingException {
+        ByteBufferAppender appender = new ByteBufferAppender(givenBuffer, givenCharset);
+        try {
+            this.format(givenMessage, calledDir, appender);
+        } catch (java.nio.charset.CharacterCodingException ex) {
+            throw ex;
+        } catch (java.io.IOException ex) {
+            //Appender throws only coding exceptions.
+        }
+        return appender.finish();
+    }
+    
+    /**
+     * Appendable which encodes chars directly into byte buffer 
+     * and grows buffer when it's full.
+     */
+    private static class ByteBufferAppender implements Appendable {
+        
+        /**
+         * Target buffer.
+         */
+        private java.nio.ByteBuffer buffer;
+        
+        /**
+         * Encoder of charset.
+         */
+        private final java.nio.charset.CharsetEncoder encoder;
+        
+        /**
+         * Chars left from previous append (high surrogate without its pair).
+         */
+        private final StringBuilder leftover = new StringBuilder();
+        
+        /**
+         * Default constructor.
+         * @param givenBuffer buffer to reuse (may be null);
+         * @param givenCharset charset of output;
+         */
+        ByteBufferAppender(java.nio.ByteBuffer givenBuffer, java.nio.charset.Charset givenCharset) {
+            if (givenBuffer == null) {
+                buffer = java.nio.ByteBuffer.allocate(4096);
+            } else {
+                buffer = givenBuffer;
+                buffer.clear();
+            }
+            encoder = givenCharset.newEncoder()
+                    .onMalformedInput(java.nio.charset.CodingErrorAction.REPLACE)
+                    .onUnmappableCharacter(java.nio.charset.CodingErrorAction.REPLACE);
+        }
+
+        @Override
+        public Appendable append(CharSequence csq) throws java.io.IOException {
+            if (csq == null) {
+                csq = "null";
+            }
+            return this.append(csq, 0, csq.length());
+        }
+
+        @Override
+        public Appendable append(CharSequence csq, int start, int end) throws java.io.IOException {
+            if (csq == null) {
+                csq = "null";
+            }
+            this.encode(java.nio.CharBuffer.wrap(csq, start, end), false);
+            return this;
+        }
+
+        @Override
+        public Appendable append(char c) throws java.io.IOException {
+            this.encode(java.nio.CharBuffer.wrap(new char[] {c}), false);
+            return this;
+        }
+        
+        /**
+         * Encode chars and grow buffer on overflow. Chars which encoder 
+         * left unread (surrogate pair split between appends) are kept 
+         * for next call.
+         * @param givenChars chars to encode;
+         * @param endOfInput end of input flag;
+         * @throws java.nio.charset.CharacterCodingException on coding error;
+         */
+        private void encode(java.nio.CharBuffer givenChars, boolean endOfInput) throws java.nio.charset.CharacterCodingException {
+            if (leftover.length() > 0) {
+                leftover.append(givenChars);
+                givenChars = java.nio.CharBuffer.wrap(leftover.toString());
+                leftover.setLength(0);
+            }
+            while (true) {
+                java.nio.charset.CoderResult result = encoder.encode(givenChars, buffer, endOfInput);
+                if (result.isOverflow()) {
+                    this.grow();
+                } else if (result.isError()) {
+                    result.throwException();
+                } else {
+                    if (givenChars.hasRemaining()) {
+                        leftover.append(givenChars);
+                    }
+                    return;
+                }
+            }
+        }
+        
+        /**
+         * Replace buffer with twice larger one.
+         */
+        private void grow() {
+            java.nio.ByteBuffer newBuffer = java.nio.ByteBuffer.allocate(Math.max(buffer.capacity() * 2, 64));
+            buffer.flip();
+            newBuffer.put(buffer);
+            buffer = newBuffer;
+        }
+        
+        /**
+         * Flush encoder and flip buffer for reading.
+         * @return buffer with encoded content;
+         * @throws java.nio.charset.CharacterCodingException on coding error;
+         */
+        java.nio.ByteBuffer finish() throws java.nio.charset.CharacterCodingException {
+            this.encode(java.nio.CharBuffer.allocate(0), true);
+            while (encoder.flush(buffer).isOverflow()) {
+                this.grow();
             }
+            buffer.flip();
+            return buffer;
         }
-        return this.templateChar.length - 1;
     }
     
     /**
-     * Return keyword from char array.
-     * @param beginIndex first char of word;
-     * @param endIndex last char of word;
-     * @return string with keyword;
+     * Compiled template segment: literal text or keyword operation.
      */
-    private String extractKeyword(Integer beginIndex, Integer endIndex) {
-        StringBuffer keyBuf = new StringBuffer();
-        while (beginIndex < endIndex) {
-            keyBuf.append(this.templateChar[beginIndex]);
-            beginIndex++;
+    private static class Segment {
+        
+        /**
+         * Literal text (or null for keyword segment).
+         */
+        final String text;
+        
+        /**
+         * Keyword operation (or null for literal segment).
+         */
+        final FormatOperation op;
+        
+        /**
+         * Default constructor.
+         * @param givenText literal text;
+         * @param givenOp keyword operation;
+         */
+        Segment(String givenText, FormatOperation givenOp) {
+            text = givenText;
+            op = givenOp;
         }
-        return keyBuf.toString();
+    }
+    
+    /**
+     * Split template to literal and keyword segments. Keyword starts 
+     * with <code>$</code> and ends with space, line break or end of 
+     * template (keyword at the end of template is resolved too). 
+     * Unknown keywords are kept in template as literals.
+     * @param givenTemplate template to compile;
+     * @return array of segments;
+     */
+    private static Segment[] compile(String givenTemplate) {
+        java.util.ArrayList<Segment> compiled = new java.util.ArrayList<>();
+        StringBuilder literalBuf = new StringBuilder();
+        int length = givenTemplate.length();
+        int charIndex = 0;
+        while (charIndex < length) {
+            char currChar = givenTemplate.charAt(charIndex);
+            if (currChar != '$') {
+                literalBuf.append(currChar);
+                charIndex++;
+                continue;
+            }
+            int endIndex = charIndex + 1;
+            while (endIndex < length) {
+                char endChar = givenTemplate.charAt(endIndex);
+                if (endChar == ' ' || endChar == '\r' || endChar == '\n') {
+                    break;
+                }
+                endIndex++;
+            }
+            String keyWord = givenTemplate.substring(charIndex + 1, endIndex);
+            FormatOperation foundOp = opsMap.get(keyWord);
+            if (foundOp == null) {
+                literalBuf.append('$').append(keyWord);
+            } else {
+                if (literalBuf.length() > 0) {
+                    compiled.add(new Segment(literalBuf.toString(), null));
+                    literalBuf.setLength(0);
+                }
+                compiled.add(new Segment(null, foundOp));
+            }
+            charIndex = endIndex;
+        }
+        if (literalBuf.length() > 0) {
+            compiled.add(new Segment(literalBuf.toString(), null));
+        }
+        return compiled.toArray(new Segment[compiled.size()]);
     }
     
     //Static section
@@ -136,11 +354,13 @@ public class Formater {
         }
         
         /**
-         * Return string according to keyword.
-         * @param givenFormater formater object;
-         * @return formated string;
+         * Append string according to keyword.
+         * @param givenMessage message to format;
+         * @param givenDir message dir;
+         * @param givenBuf buffer to append to;
+         * @throws java.io.IOException if buffer can't be written;
          */
-        public abstract String process(Formater givenFormater);
+        public abstract void process(MessageClasses.Message givenMessage, String givenDir, Appendable givenBuf) throws java.io.IOException;
         
     }
     
@@ -154,8 +374,8 @@ public class Formater {
          */
         new FormatOperation("INDEX") {
             @Override
-            public String process(Formater givenFormater) {
-                return givenFormater.currMessage.INDEX;
+            public void process(MessageClasses.Message givenMessage, String givenDir, Appendable givenBuf) throws java.io.IOException {
+                givenBuf.append(givenMessage.INDEX);
             }
         },
         
@@ -164,8 +384,8 @@ public class Formater {
          */
         new FormatOperation("DIR") {
             @Override
-            public String process(Formater givenFormater) {
-                return givenFormater.currCalledDir;
+            public void process(MessageClasses.Message givenMessage, String givenDir, Appendable givenBuf) throws java.io.IOException {
+                givenBuf.append(givenDir);
             }
         },
         
@@ -174,16 +394,13 @@ public class Formater {
          */
         new FormatOperation("TAGS") {
             @Override
-            public String process(Formater givenFormater) {
-                String compTag = "";
-                for (Integer tagIndex=0; tagIndex < givenFormater.currMessage.TAGS.length; tagIndex++) {
-                    if (tagIndex == givenFormater.currMessage.TAGS.length - 1) {
-                        compTag = compTag + givenFormater.currMessage.TAGS[tagIndex];
-                    } else {
-                        compTag = compTag + givenFormater.currMessage.TAGS[tagIndex] + ", ";
+            public void process(MessageClasses.Message givenMessage, String givenDir, Appendable givenBuf) throws java.io.IOException {
+                for (int tagIndex = 0; tagIndex < givenMessage.TAGS.length; tagIndex++) {
+                    if (tagIndex > 0) {
+                        givenBuf.append(", ");
                     }
+                    givenBuf.append(givenMessage.TAGS[tagIndex]);
                 }
-                return compTag;
             }
         },
         
@@ -192,16 +409,13 @@ public class Formater {
          */
         new FormatOperation("DEFIS_TAGS") {
             @Override
-            public String process(Formater givenFormater) {
-                String compTag = "";
-                for (Integer tagIndex=0; tagIndex < givenFormater.currMessage.TAGS.length; tagIndex++) {
-                    if (tagIndex == givenFormater.currMessage.TAGS.length - 1) {
-                        compTag = compTag + givenFormater.currMessage.TAGS[tagIndex].toUpperCase();
-                    } else {
-                        compTag = compTag + givenFormater.currMessage.TAGS[tagIndex].toUpperCase() + "-";
+            public void process(MessageClasses.Message givenMessage, String givenDir, Appendable givenBuf) throws java.io.IOException {
+                for (int tagIndex = 0; tagIndex < givenMessage.TAGS.length; tagIndex++) {
+                    if (tagIndex > 0) {
+                        givenBuf.append('-');
                     }
+                    givenBuf.append(givenMessage.TAGS[tagIndex].toUpperCase());
                 }
-                return compTag;
             }
         },
         
@@ -210,8 +424,8 @@ public class Formater {
          */
         new FormatOperation("HEADER") {
             @Override
-            public String process(Formater givenFormater) {
-                return givenFormater.currMessage.HEADER;
+            public void process(MessageClasses.Message givenMessage, String givenDir, Appendable givenBuf) throws java.io.IOException {
+                givenBuf.append(givenMessage.HEADER);
             }
         },
         
@@ -220,8 +434,8 @@ public class Formater {
          */
         new FormatOperation("UPPER_HEADER") {
             @Override
-            public String process(Formater givenFormater) {
-                return givenFormater.currMessage.HEADER.toUpperCase();
+            public void process(MessageClasses.Message givenMessage, String givenDir, Appendable givenBuf) throws java.io.IOException {
+                givenBuf.append(givenMessage.HEADER.toUpperCase());
             }
         },
         
@@ -230,8 +444,8 @@ public class Formater {
          */
         new FormatOperation("CONTENT") {
             @Override
-            public String process(Formater givenFormater) {
-                return givenFormater.currMessage.CONTENT;
+            public void process(MessageClasses.Message givenMessage, String givenDir, Appendable givenBuf) throws java.io.IOException {
+                givenBuf.append(givenMessage.CONTENT);
             }
         },
         
@@ -240,8 +454,15 @@ public class Formater {
          */
         new FormatOperation("HTML_CONTENT") {
             @Override
-            public String process(Formater givenFormater) {
-                return givenFormater.currMessage.CONTENT.replaceAll("\n","<br/>");
+            public void process(MessageClasses.Message givenMessage, String givenDir, Appendable givenBuf) throws java.io.IOException {
+                String content = givenMessage.CONTENT;
+                int lastIndex = 0;
+                int breakIndex;
+                while ((breakIndex = content.indexOf('\n', lastIndex)) != -1) {
+                    givenBuf.append(content, lastIndex, breakIndex).append("<br/>");
+                    lastIndex = breakIndex + 1;
+                }
+                givenBuf.append(content, lastIndex, content.length());
             }
         },
         
@@ -250,15 +471,14 @@ public class Formater {
          */
         new FormatOperation("AUTHOR") {
             @Override
-            public String process(Formater givenFormater) {
-                java.util.ListIterator<MessageClasses.MessageProperty> propIter = givenFormater.currMessage.PROPERTIES.listIterator();
-                while (propIter.hasNext()) {
-                    MessageClasses.MessageProperty currProp = propIter.next();
+            public void process(MessageClasses.Message givenMessage, String givenDir, Appendable givenBuf) throws java.io.IOException {
+                for (MessageClasses.MessageProperty currProp : givenMessage.PROPERTIES) {
                     if (currProp.TYPE.equals("COPYRIGHT")) {
-                        return currProp.TEXT_MESSAGE;
+                        givenBuf.append(currProp.TEXT_MESSAGE);
+                        return;
                     }
                 }
-                return givenFormater.currMessage.AUTHOR;
+                givenBuf.append(givenMessage.AUTHOR);
             }
         },
         
@@ -267,23 +487,60 @@ public class Formater {
          */
         new FormatOperation("DATE") {
             @Override
-            public String process(Formater givenFormater) {
-                return givenFormater.currMessage.DATE;
+            public void process(MessageClasses.Message givenMessage, String givenDir, Appendable givenBuf) throws java.io.IOException {
+                givenBuf.append(givenMessage.DATE);
             }
         }
     };
     
+    /**
+     * Map of FormatOperation instances by keyword.
+     */
+    private final static java.util.HashMap<String, FormatOperation> opsMap = new java.util.HashMap<>();
+    
+    static {
+        for (FormatOperation currOp : ops) {
+            opsMap.put(currOp.WORD, currOp);
+        }
+    }
+    
     /**
      * Get formated string for given keyword.
      * @param givenWord word to format;
-     * @param givenFormater formater with data;
+     * @param givenMessage message to format;
+     * @param givenDir message dir;
      * @return formated string or keyword if word is uknown;
      */
+    public static String getByKeyword(String givenWord, MessageClasses.Message givenMessage, String givenDir) {
+        FormatOperation foundOp = opsMap.get(givenWord);
+        if (foundOp == null) {
+            return "$" + givenWord;
+        }
+        StringBuilder wordBuf = new StringBuilder();
+        try {
+            foundOp.process(givenMessage, givenDir, wordBuf);
+        } catch (java.io.IOException ex) {
+            //StringBuilder never throws IOException.
+        }
+        return wordBuf.toString();
+    }
+    
+    /**
+     * Get formated string for given keyword.<br>
+     * <br>
+     * Formater doesn't keep formatting message between calls any more 
+     * (it's shared by many threads), so only unknown keywords can be 
+     * processed by this method.
+     * @param givenWord word to format;
+     * @param givenFormater formater (not used);
+     * @return keyword if word is uknown;
+     * @throws IllegalStateException if word is known keyword (it needs message);
+     * @deprecated use {@link #getByKeyword(java.lang.String, MessageClasses.Message, java.lang.String)} instead;
+     */
+    @Deprecated
     public static String getByKeyword(String givenWord, Formater givenFormater) {
-        for (FormatOperation currOp : ops) {
-            if (givenWord.equals(currOp.WORD)) {
-                return currOp.process(givenFormater);
-            }
+        if (opsMap.containsKey(givenWord)) {
+            throw new IllegalStateException("ключове слово " + givenWord + " потребує повідомлення, використовуйте getByKeyword(String, Message, String)");
         }
         return "$" + givenWord;
     }
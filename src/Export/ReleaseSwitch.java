@@ -25,7 +25,10 @@ import Utils.IOControl;
  * ReleaseSwitch is created for prevent massive concurent 
  * calling to index writer methods. ReleaseSwitch creates for 
  * each exporting message. Only when all exports were done withot 
- * errors then ReleaseSwitch will call index writer update base index.
+ * errors then ReleaseSwitch will call index writer update base index.<br>
+ * <br>
+ * Switch counts down schemas without locks and also acts as completion 
+ * handle: callers may wait for release or attach listeners to it.
  * @author Stanislav Nepochatov <spoilt.exile@gmail.com>
  */
 public class ReleaseSwitch {
@@ -36,24 +39,60 @@ public class ReleaseSwitch {
      */
     public ReleaseSwitch(String givenIndex) {
         INDEX = givenIndex;
+        startTime = System.nanoTime();
     }
     
     /**
      * Index of exported message.
      */
-    private String INDEX;
+    private final String INDEX;
     
     /**
-     * Array with schemas names.
+     * Set with names of schemas which are not marked yet.
      */
-    private java.util.ArrayList<String> SCHEMAS = new java.util.ArrayList<>();
+    private final java.util.Set<String> SCHEMAS = java.util.Collections.newSetFromMap(new java.util.concurrent.ConcurrentHashMap<String, Boolean>());
+    
+    /**
+     * Count of schemas which are not marked yet.
+     */
+    private final java.util.concurrent.atomic.AtomicInteger remaining = new java.util.concurrent.atomic.AtomicInteger();
+    
+    /**
+     * Latch which opens after release.
+     */
+    private final java.util.concurrent.CountDownLatch doneLatch = new java.util.concurrent.CountDownLatch(1);
+    
+    /**
+     * Listeners to run after release.
+     */
+    private final java.util.concurrent.ConcurrentLinkedQueue<Runnable> listeners = new java.util.concurrent.ConcurrentLinkedQueue<>();
+    
+    /**
+     * Time of switch creation (nanoseconds).
+     */
+    private final long startTime;
+    
+    /**
+     * Time of release (nanoseconds).
+     */
+    private volatile long finishTime;
+    
+    /**
+     * Output rendered for this release by formater and called dir 
+     * (see <code>TemplateCache.render</code>).
+     */
+    final java.util.concurrent.ConcurrentHashMap<java.util.Map.Entry<Formater, String>, String> rendered = new java.util.concurrent.ConcurrentHashMap<>();
     
     /**
      * Add schemas into switch.
      * @param givenList list to add;
      */
-    public void addSchemas(java.util.ArrayList givenList) {
-        this.SCHEMAS.addAll(givenList);
+    public void addSchemas(java.util.List<String> givenList) {
+        for (String currName : givenList) {
+            if (SCHEMAS.add(currName)) {
+                remaining.incrementAndGet();
+            }
+        }
     }
     
     /**
@@ -62,8 +101,7 @@ public class ReleaseSwitch {
      * @param givenName name to mark.
      */
     public void markSchema(String givenName) {
-        SCHEMAS.remove(givenName);
-        if (SCHEMAS.isEmpty()) {
+        if (SCHEMAS.remove(givenName) && remaining.decrementAndGet() == 0) {
             this.markSwitch();
         }
     }
@@ -72,6 +110,85 @@ public class ReleaseSwitch {
      * Call to index update method after all schemas export.
      */
     private void markSwitch() {
-        IOControl.serverWrapper.updateIndex(INDEX);
+        try {
+            IOControl.serverWrapper.updateIndex(INDEX);
+        } finally {
+            rendered.clear();
+            finishTime = System.nanoTime();
+            doneLatch.countDown();
+            this.runListeners();
+        }
+    }
+    
+    /**
+     * Run and remove all registered listeners.
+     */
+    private void runListeners() {
+        Runnable currListener;
+        while ((currListener = listeners.poll()) != null) {
+            try {
+                currListener.run();
+            } catch (RuntimeException ex) {
+                IOControl.serverWrapper.postException("Помилка обробника випуску повідомлення " + INDEX, ex);
+            }
+        }
+    }
+    
+    /**
+     * Add listener which will be called after release 
+     * (immediately if message already released).
+     * @param givenListener listener to add;
+     */
+    public void addListener(Runnable givenListener) {
+        listeners.add(givenListener);
+        if (this.isDone()) {
+            this.runListeners();
+        }
+    }
+    
+    /**
+     * Get index of exported message.
+     * @return index of message;
+     */
+    public String getIndex() {
+        return INDEX;
+    }
+    
+    /**
+     * Find out if all schemas were marked.
+     * @return true if message released / false if not.
+     */
+    public boolean isDone() {
+        return doneLatch.getCount() == 0;
+    }
+    
+    /**
+     * Wait until all schemas are marked.
+     * @throws InterruptedException if waiting was interrupted;
+     */
+    public void await() throws InterruptedException {
+        doneLatch.await();
+    }
+    
+    /**
+     * Wait until all schemas are marked or timeout expired.
+     * @param timeout time to wait;
+     * @param unit unit of time;
+     * @return true if message released / false if timeout expired;
+     * @throws InterruptedException if waiting was interrupted;
+     */
+    public boolean await(long timeout, java.util.concurrent.TimeUnit unit) throws InterruptedException {
+        return doneLatch.await(timeout, unit);
+    }
+    
+    /**
+     * Get time from export init to release of last schema.
+     * @return latency in milliseconds or -1 if message isn't released yet;
+     */
+    public long getLatency() {
+        if (!this.isDone()) {
+            return -1;
+        }
+        return java.util.concurrent.TimeUnit.NANOSECONDS.toMillis(finishTime - startTime);
     }
 }
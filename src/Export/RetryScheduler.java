@@ -0,0 +1,202 @@
+/**
+ * This file is part of libRibbonIO library (check README).
+ * Copyright (C) 2012-2013 Stanislav Nepochatov
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+**/
+
+package Export;
+
+import Utils.IOControl;
+
+/**
+ * Retry scheduler for broken export tasks (replacement of error quene). 
+ * Tasks wait in delay quene according to backoff policy of their 
+ * schemas and run on export executor when they are due, so retries 
+ * of different schemas don't block each other. Retries which became 
+ * due together are submitted in order of their priority.
+ * @author Stanislav Nepochatov <spoilt.exile@gmail.com>
+ */
+public class RetryScheduler {
+    
+    /**
+     * Quene of waiting retries.
+     */
+    private final java.util.concurrent.DelayQueue<RetryTask> quene = new java.util.concurrent.DelayQueue<>();
+    
+    /**
+     * Sequence for ordering retries with same due time.
+     */
+    private final java.util.concurrent.atomic.AtomicLong sequence = new java.util.concurrent.atomic.AtomicLong();
+    
+    /**
+     * Order of due retries: by priority, then by due time.
+     */
+    private static final java.util.Comparator<RetryTask> PRIORITY_ORDER = new java.util.Comparator<RetryTask>() {
+
+        @Override
+        public int compare(RetryTask first, RetryTask second) {
+            int byPriority = first.exporter.priority.compareTo(second.exporter.priority);
+            return byPriority != 0 ? byPriority : first.compareTo(second);
+        }
+    };
+    
+    /**
+     * Thread which takes due retries from quene.
+     */
+    private final Thread timerThread;
+    
+    /**
+     * Dispatcher which owns this scheduler.
+     */
+    private final Dispatcher dispatcher;
+    
+    /**
+     * Default constructor.
+     * @param givenDispatcher dispatcher which owns this scheduler;
+     */
+    public RetryScheduler(Dispatcher givenDispatcher) {
+        dispatcher = givenDispatcher;
+        timerThread = new Thread(new Runnable() {
+
+            @Override
+            public void run() {
+                while (true) {
+                    try {
+                        java.util.ArrayList<RetryTask> dueTasks = new java.util.ArrayList<>();
+                        dueTasks.add(quene.take());
+                        quene.drainTo(dueTasks);
+                        java.util.Collections.sort(dueTasks, PRIORITY_ORDER);
+                        for (RetryTask dueTask : dueTasks) {
+                            submit(dueTask);
+                        }
+                    } catch (InterruptedException ex) {
+                        return;
+                    }
+                }
+            }
+        }, "ExportRetryScheduler");
+        timerThread.setDaemon(true);
+    }
+    
+    /**
+     * Scheduled retry of broken export task.
+     */
+    private class RetryTask implements java.util.concurrent.Delayed, Runnable {
+        
+        /**
+         * Broken export task.
+         */
+        final Exporter exporter;
+        
+        /**
+         * Number of this attempt (starts from 0).
+         */
+        final int attempt;
+        
+        /**
+         * Due time (nanoseconds).
+         */
+        final long dueTime;
+        
+        /**
+         * Order of scheduling.
+         */
+        final long order;
+        
+        /**
+         * Default constructor.
+         * @param givenExporter broken export task;
+         * @param givenAttempt number of attempt;
+         * @param givenDelay delay in milliseconds;
+         */
+        RetryTask(Exporter givenExporter, int givenAttempt, long givenDelay) {
+            exporter = givenExporter;
+            attempt = givenAttempt;
+            dueTime = System.nanoTime() + java.util.concurrent.TimeUnit.MILLISECONDS.toNanos(givenDelay);
+            order = sequence.incrementAndGet();
+        }
+
+        @Override
+        public long getDelay(java.util.concurrent.TimeUnit unit) {
+            return unit.convert(dueTime - System.nanoTime(), java.util.concurrent.TimeUnit.NANOSECONDS);
+        }
+
+        @Override
+        public int compareTo(java.util.concurrent.Delayed other) {
+            RetryTask otherTask = (RetryTask) other;
+            if (dueTime != otherTask.dueTime) {
+                return dueTime < otherTask.dueTime ? -1 : 1;
+            }
+            return Long.compare(order, otherTask.order);
+        }
+
+        @Override
+        public void run() {
+            if (exporter.tryRecovery()) {
+                dispatcher.exportRecovered(exporter);
+            } else {
+                schedule(exporter, attempt + 1);
+            }
+        }
+    }
+    
+    /**
+     * Start scheduler thread.
+     */
+    public synchronized void start() {
+        if (!timerThread.isAlive()) {
+            timerThread.start();
+        }
+    }
+    
+    /**
+     * Schedule first retry of broken export task.
+     * @param givenExporter broken export task;
+     */
+    public void schedule(Exporter givenExporter) {
+        this.schedule(givenExporter, 0);
+    }
+    
+    /**
+     * Schedule retry of broken export task.
+     * @param givenExporter broken export task;
+     * @param givenAttempt number of attempt;
+     */
+    private void schedule(Exporter givenExporter, int givenAttempt) {
+        long delay = givenExporter.currSchema.currBackoff.getDelay(givenAttempt);
+        quene.put(new RetryTask(givenExporter, givenAttempt, delay));
+    }
+    
+    /**
+     * Run due retry through schema's bulkhead.
+     * @param givenTask due retry;
+     */
+    private void submit(RetryTask givenTask) {
+        Schema currSchema = givenTask.exporter.currSchema;
+        if (!currSchema.currBulkhead.submit(givenTask, dispatcher.getExecutor(), givenTask.exporter.priority)) {
+            IOControl.serverWrapper.log(IOControl.EXPORT_LOGID + ":" + currSchema.name, 2, "черга схеми переповнена, повтор експорту " + givenTask.exporter.exportedMessage.INDEX + " відкладено");
+            this.schedule(givenTask.exporter, givenTask.attempt);
+        }
+    }
+    
+    /**
+     * Get count of waiting retries.
+     * @return size of quene;
+     */
+    public int size() {
+        return quene.size();
+    }
+}
@@ -0,0 +1,169 @@
+/**
+ * This file is part of libRibbonIO library (check README).
+ * Copyright (C) 2012-2013 Stanislav Nepochatov
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+**/
+
+package Export;
+
+/**
+ * Immutable export routing table: maps system directory to 
+ * resolved array of subscribed schemas. Table is never changed 
+ * after creation, new subscription produces new table.
+ * @author Stanislav Nepochatov <spoilt.exile@gmail.com>
+ */
+public final class RoutingTable {
+    
+    /**
+     * Schemas by their names.
+     */
+    private final java.util.Map<String, Schema> schemas;
+    
+    /**
+     * Subscribed schemas names by directory name.
+     */
+    private final java.util.Map<String, String[]> subscribes;
+    
+    /**
+     * Resolved schemas by directory name.
+     */
+    private final java.util.Map<String, Schema[]> routes;
+    
+    /**
+     * Build table for schemas without subscriptions.
+     * @param givenSchemas list of schemas;
+     */
+    public RoutingTable(java.util.List<Schema> givenSchemas) {
+        java.util.LinkedHashMap<String, Schema> schemaMap = new java.util.LinkedHashMap<>();
+        for (Schema currSchema : givenSchemas) {
+            schemaMap.put(currSchema.name, currSchema);
+        }
+        schemas = java.util.Collections.unmodifiableMap(schemaMap);
+        subscribes = java.util.Collections.emptyMap();
+        routes = java.util.Collections.emptyMap();
+    }
+    
+    /**
+     * Build table with resolved subscriptions.
+     * @param givenSchemas schemas by names;
+     * @param givenSubscribes subscribed schemas names by directory name;
+     */
+    private RoutingTable(java.util.Map<String, Schema> givenSchemas, java.util.Map<String, String[]> givenSubscribes) {
+        java.util.HashMap<String, Schema[]> routeMap = new java.util.HashMap<>();
+        for (java.util.Map.Entry<String, String[]> currEntry : givenSubscribes.entrySet()) {
+            java.util.ArrayList<Schema> resolved = new java.util.ArrayList<>();
+            for (String currName : currEntry.getValue()) {
+                Schema currSchema = givenSchemas.get(currName);
+                if (currSchema != null && !resolved.contains(currSchema)) {
+                    resolved.add(currSchema);
+                }
+            }
+            if (!resolved.isEmpty()) {
+                routeMap.put(currEntry.getKey(), resolved.toArray(new Schema[resolved.size()]));
+            }
+        }
+        schemas = givenSchemas;
+        subscribes = givenSubscribes;
+        routes = routeMap;
+    }
+    
+    /**
+     * Get new table with given directory subscription.
+     * @param givenDirName name of directory;
+     * @param givenSchemas names of subscribed schemas;
+     * @return new routing table;
+     */
+    public RoutingTable withSubscription(String givenDirName, String[] givenSchemas) {
+        java.util.HashMap<String, String[]> newSubscribes = new java.util.HashMap<>(this.subscribes);
+        newSubscribes.put(givenDirName, givenSchemas.clone());
+        return new RoutingTable(this.schemas, java.util.Collections.unmodifiableMap(newSubscribes));
+    }
+    
+    /**
+     * Get new table with replaced, added or removed schemas (subscribes are kept).
+     * @param changedSchemas new versions of schemas (replace schemas with same names);
+     * @param removedNames names of removed schemas;
+     * @return new routing table;
+     */
+    public RoutingTable withSchemas(java.util.Collection<Schema> changedSchemas, java.util.Collection<String> removedNames) {
+        java.util.LinkedHashMap<String, Schema> newSchemas = new java.util.LinkedHashMap<>(this.schemas);
+        newSchemas.keySet().removeAll(removedNames);
+        for (Schema currSchema : changedSchemas) {
+            newSchemas.put(currSchema.name, currSchema);
+        }
+        return new RoutingTable(java.util.Collections.unmodifiableMap(newSchemas), this.subscribes);
+    }
+    
+    /**
+     * Find out if schema existed.
+     * @param givenName name of schema;
+     * @return true if existed / false if not.
+     */
+    public boolean hasSchema(String givenName) {
+        return this.schemas.containsKey(givenName);
+    }
+    
+    /**
+     * Get schema by name.
+     * @param givenName name of schema;
+     * @return schema or null.
+     */
+    public Schema getSchema(String givenName) {
+        return this.schemas.get(givenName);
+    }
+    
+    /**
+     * Get all schemas of table.
+     * @return collection of schemas in load order;
+     */
+    public java.util.Collection<Schema> getSchemas() {
+        return this.schemas.values();
+    }
+    
+    /**
+     * Find out if directory has subscriptions.
+     * @param givenDir name of directory;
+     * @return true if directory is routed / false if not.
+     */
+    public boolean isRouted(String givenDir) {
+        return this.routes.containsKey(givenDir);
+    }
+    
+    /**
+     * Resolve schemas for message directories. Each schema is 
+     * returned once with all its matched directories.
+     * @param givenDirs message directories;
+     * @return map of schemas with directories in subscription order;
+     */
+    public java.util.LinkedHashMap<Schema, java.util.ArrayList<String>> resolve(String[] givenDirs) {
+        java.util.LinkedHashMap<Schema, java.util.ArrayList<String>> resolved = new java.util.LinkedHashMap<>();
+        for (String currDir : givenDirs) {
+            Schema[] currRoute = this.routes.get(currDir);
+            if (currRoute == null) {
+                continue;
+            }
+            for (Schema currSchema : currRoute) {
+                java.util.ArrayList<String> schemaDirs = resolved.get(currSchema);
+                if (schemaDirs == null) {
+                    schemaDirs = new java.util.ArrayList<>(1);
+                    resolved.put(currSchema, schemaDirs);
+                }
+                schemaDirs.add(currDir);
+            }
+        }
+        return resolved;
+    }
+}
@@ -43,15 +43,51 @@ public class Schema {
     private Class<Exporter> exporterModule;
     
     /**
-     * Export formater.
+     * Export formater (last one returned by <code>getFormater</code> call).
      */
-    public Formater currFormater;
+    public volatile Formater currFormater;
+    
+    /**
+     * Flag of broken template (it isn't read again).
+     */
+    private volatile boolean templateBroken = false;
     
     /**
      * Current export config.
      */
     public java.util.Properties currConfig;
     
+    /**
+     * Bulkhead which limits concurrent exports of this schema.
+     */
+    public Bulkhead currBulkhead;
+    
+    /**
+     * Retry backoff policy of this schema.
+     */
+    public BackoffPolicy currBackoff;
+    
+    /**
+     * Circuit breaker of this schema.
+     */
+    public CircuitBreaker currBreaker;
+    
+    /**
+     * Export batcher of this schema (or null if batching is disabled).
+     */
+    public ExportBatcher currBatcher;
+    
+    /**
+     * Coalescer of repeated releases (or null if coalescing is disabled).
+     */
+    public ExportCoalescer currCoalescer;
+    
+    /**
+     * Minimal priority of exports of this schema 
+     * (or null if <code>opt_priority</code> isn't configured).
+     */
+    public ExportPriority currPriority;
+    
     /**
      * Emergency action enumetation.
      */
@@ -87,13 +123,6 @@ public class Schema {
         exporterModule = givenModule;
         type = currConfig.getProperty("export_type");
         name = currConfig.getProperty("export_name");
-        if (currConfig.containsKey("export_template")) {
-            try {
-                currFormater = new Formater(currConfig, new String(java.nio.file.Files.readAllBytes(new java.io.File(IOControl.EXPORT_DIR + "/" + currConfig.getProperty("export_template")).toPath())));
-            } catch (java.io.IOException ex) {
-                IOControl.serverWrapper.log(IOControl.EXPORT_LOGID + ":" + name, 1, "помилка завантаження шаблону " + IOControl.EXPORT_DIR + "/" + currConfig.getProperty("export_template"));
-            }
-        }
         if (currConfig.containsKey("opt_em_action")) {
             try {
                 currAction = EM_ACTION.valueOf(currConfig.getProperty("opt_em_action"));
@@ -101,9 +130,95 @@ public class Schema {
                 IOControl.serverWrapper.log(IOControl.EXPORT_LOGID + ":" + name, 1, "тип аварійної дії '" + currConfig.getProperty("opt_em_action") + "' не підтримується системою.");
             }
         }
+        if (currConfig.containsKey("opt_priority")) {
+            currPriority = ExportPriority.parse(currConfig.getProperty("opt_priority"), null);
+            if (currPriority == null) {
+                IOControl.serverWrapper.log(IOControl.EXPORT_LOGID + ":" + name, 1, "пріоритет '" + currConfig.getProperty("opt_priority") + "' не підтримується системою.");
+            }
+        }
+        currBulkhead = new Bulkhead(getIntOption("opt_max_inflight", Bulkhead.DEFAULT_MAX_INFLIGHT, 1), getIntOption("opt_quene_depth", Bulkhead.DEFAULT_QUENE_DEPTH, 1));
+        currBackoff = BackoffPolicy.fromSchema(this);
+        currBreaker = CircuitBreaker.fromSchema(this);
+        currBatcher = ExportBatcher.fromSchema(this);
+        currCoalescer = ExportCoalescer.fromSchema(this);
         IOControl.serverWrapper.log(IOControl.EXPORT_LOGID, 3, "завантажено схему експорту '" + this.name + "'");
     }
     
+    /**
+     * Get formater of schema template from shared template cache, so 
+     * every schema which uses template gets new formater after template 
+     * is reloaded by another schema.
+     * @return formater or null if schema has no template or template is broken;
+     */
+    public Formater getFormater() {
+        if (templateBroken || !currConfig.containsKey("export_template")) {
+            return null;
+        }
+        Formater found = null;
+        try {
+            found = TemplateCache.getFormater(IOControl.EXPORT_DIR + "/" + currConfig.getProperty("export_template"));
+        } catch (java.io.IOException ex) {
+            IOControl.serverWrapper.log(IOControl.EXPORT_LOGID + ":" + name, 1, "помилка завантаження шаблону " + IOControl.EXPORT_DIR + "/" + currConfig.getProperty("export_template"));
+            templateBroken = true;
+        }
+        currFormater = found;
+        return found;
+    }
+    
+    /**
+     * Get integer option from schema config.
+     * @param key name of option;
+     * @param defaultValue value to return if option is absent or broken;
+     * @return value of option or default value;
+     */
+    public int getIntOption(String key, int defaultValue) {
+        String rawValue = currConfig.getProperty(key);
+        if (rawValue == null || rawValue.trim().isEmpty()) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(rawValue.trim());
+        } catch (NumberFormatException ex) {
+            IOControl.serverWrapper.log(IOControl.EXPORT_LOGID + ":" + name, 1, "некоректне значення параметру " + key + ": " + rawValue);
+            return defaultValue;
+        }
+    }
+    
+    /**
+     * Get integer option from schema config which can't be less than given minimum.
+     * @param key name of option;
+     * @param defaultValue value to return if option is absent or broken;
+     * @param minValue minimal value (smaller value is raised to it);
+     * @return value of option or default value;
+     */
+    public int getIntOption(String key, int defaultValue, int minValue) {
+        int value = this.getIntOption(key, defaultValue);
+        if (value < minValue) {
+            IOControl.serverWrapper.log(IOControl.EXPORT_LOGID + ":" + name, 2, "значення параметру " + key + " " + value + " замале, використовується " + minValue);
+            return minValue;
+        }
+        return value;
+    }
+    
+    /**
+     * Get floating point option from schema config.
+     * @param key name of option;
+     * @param defaultValue value to return if option is absent or broken;
+     * @return value of option or default value;
+     */
+    public double getDoubleOption(String key, double defaultValue) {
+        String rawValue = currConfig.getProperty(key);
+        if (rawValue == null || rawValue.trim().isEmpty()) {
+            return defaultValue;
+        }
+        try {
+            return Double.parseDouble(rawValue.trim());
+        } catch (NumberFormatException ex) {
+            IOControl.serverWrapper.log(IOControl.EXPORT_LOGID + ":" + name, 1, "некоректне значення параметру " + key + ": " + rawValue);
+            return defaultValue;
+        }
+    }
+    
     /**
      * Get timeout befor export.
      * @return integer value for time waiting before export;
@@ -120,9 +235,31 @@ public class Schema {
      * @return new export task;
      */
     public Exporter getNewExportTask(MessageClasses.Message givenMessage, ReleaseSwitch givenSwitch, String givenDir) {
+        return this.getNewExportTask(givenMessage, givenSwitch, new String[] {givenDir});
+    }
+    
+    /**
+     * Get priority of export of given message by this schema.
+     * @param givenMessage message to export;
+     * @return the highest of message and schema priorities (<code>NORMAL</code> if none of them is set);
+     */
+    public ExportPriority getPriority(MessageClasses.Message givenMessage) {
+        ExportPriority found = ExportPriority.max(ExportPriority.ofMessage(givenMessage), currPriority);
+        return found != null ? found : ExportPriority.NORMAL;
+    }
+    
+    /**
+     * Get new export task for message routed through several directories.
+     * @param givenMessage message to export;
+     * @param givenSwitch switch;
+     * @param givenDirs all called dirs (first one is used for formatting);
+     * @return new export task;
+     */
+    public Exporter getNewExportTask(MessageClasses.Message givenMessage, ReleaseSwitch givenSwitch, String[] givenDirs) {
         Exporter newExport = null;
         try {
-            newExport = (Exporter) this.exporterModule.getConstructor(MessageClasses.Message.class, Schema.class, ReleaseSwitch.class, String.class).newInstance(givenMessage, this, givenSwitch, givenDir);
+            newExport = this.exporterModule.getConstructor(MessageClasses.Message.class, Schema.class, ReleaseSwitch.class, String.class).newInstance(givenMessage, this, givenSwitch, givenDirs[0]);
+            newExport.calledDirs = givenDirs;
         } catch (java.lang.reflect.InvocationTargetException ex) {
             ex.getTargetException().printStackTrace();
         } catch (Exception ex) {
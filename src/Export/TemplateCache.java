@@ -0,0 +1,125 @@
+/**
+ * This file is part of libRibbonIO library (check README).
+ * Copyright (C) 2012-2013 Stanislav Nepochatov
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+**/
+
+package Export;
+
+/**
+ * Shared store of export templates. Schemas which use the same 
+ * <code>export_template</code> file share single <code>Formater</code>. 
+ * Output is cached only within single release (in its 
+ * <code>ReleaseSwitch</code>), so message which fans out to several 
+ * such schemas is formatted only once per directory, and message which 
+ * was changed and released again is always formatted again.
+ * @author Stanislav Nepochatov <spoilt.exile@gmail.com>
+ */
+public final class TemplateCache {
+    
+    /**
+     * Loaded formaters by template file path.
+     */
+    private static final java.util.concurrent.ConcurrentHashMap<String, Formater> formaters = new java.util.concurrent.ConcurrentHashMap<>();
+    
+    /**
+     * Count of render cache hits.
+     */
+    private static final java.util.concurrent.atomic.AtomicLong hits = new java.util.concurrent.atomic.AtomicLong();
+    
+    /**
+     * Count of render cache misses.
+     */
+    private static final java.util.concurrent.atomic.AtomicLong misses = new java.util.concurrent.atomic.AtomicLong();
+    
+    private TemplateCache() {}
+    
+    /**
+     * Get shared formater for template file (load it if needed).
+     * @param givenPath path to template file;
+     * @return formater for template;
+     * @throws java.io.IOException if template can't be read;
+     */
+    public static Formater getFormater(String givenPath) throws java.io.IOException {
+        String key = new java.io.File(givenPath).getAbsolutePath();
+        Formater found = formaters.get(key);
+        if (found == null) {
+            Formater loaded = new Formater(null, new String(java.nio.file.Files.readAllBytes(new java.io.File(key).toPath())));
+            found = formaters.putIfAbsent(key, loaded);
+            if (found == null) {
+                found = loaded;
+            }
+        }
+        return found;
+    }
+    
+    /**
+     * Drop loaded template (it will be read again on next <code>getFormater</code> call).
+     * @param givenPath path to template file;
+     */
+    public static void evict(String givenPath) {
+        formaters.remove(new java.io.File(givenPath).getAbsolutePath());
+    }
+    
+    /**
+     * Render message with formater or return output rendered 
+     * by this formater for the same release and directory.
+     * @param givenFormater formater to use;
+     * @param givenMessage message to format;
+     * @param givenDir called directory;
+     * @param givenSwitch release switch of message (or null to format without cache);
+     * @return formated string;
+     */
+    public static String render(Formater givenFormater, MessageClasses.Message givenMessage, String givenDir, ReleaseSwitch givenSwitch) {
+        if (givenSwitch == null) {
+            misses.incrementAndGet();
+            return givenFormater.format(givenMessage, givenDir);
+        }
+        java.util.Map.Entry<Formater, String> key = new java.util.AbstractMap.SimpleImmutableEntry<>(givenFormater, givenDir);
+        String found = givenSwitch.rendered.get(key);
+        if (found != null) {
+            hits.incrementAndGet();
+            return found;
+        }
+        misses.incrementAndGet();
+        String content = givenFormater.format(givenMessage, givenDir);
+        givenSwitch.rendered.putIfAbsent(key, content);
+        return content;
+    }
+    
+    /**
+     * Drop all loaded templates.
+     */
+    public static void clear() {
+        formaters.clear();
+    }
+    
+    /**
+     * Get count of render cache hits.
+     * @return count of hits;
+     */
+    public static long getHits() {
+        return hits.get();
+    }
+    
+    /**
+     * Get count of render cache misses.
+     * @return count of misses;
+     */
+    public static long getMisses() {
+        return misses.get();
+    }
+}
@@ -0,0 +1,140 @@
+/**
+ * This file is part of libRibbonIO library (check README).
+ * Copyright (C) 2012-2013 Stanislav Nepochatov
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+**/
+
+package Import;
+
+import Utils.IOControl;
+
+/**
+ * Persistent checkpoints of importer (last offset, ETag, file 
+ * modification time, sequence id etc.). New values are pending until 
+ * <code>commit</code> call (after their data is added to the system), 
+ * <code>get</code> returns only committed values and <code>discard</code> 
+ * drops pending ones after failed pass. Committed checkpoints are 
+ * written to <code>&lt;import_print&gt;.checkpoint</code> file in import 
+ * config dir on <code>save</code> call, file is replaced atomically so 
+ * restart always sees complete set of checkpoints.
+ * @author Stanislav Nepochatov <spoilt.exile@gmail.com>
+ */
+public class CheckpointStore {
+    
+    /**
+     * Checkpoint file.
+     */
+    private final java.io.File storeFile;
+    
+    /**
+     * Committed checkpoints.
+     */
+    private final java.util.Properties checkpoints = new java.util.Properties();
+    
+    /**
+     * Pending checkpoints (null value removes checkpoint).
+     */
+    private final java.util.HashMap<String, String> pending = new java.util.HashMap<>();
+    
+    /**
+     * Flag of checkpoints changed since last save.
+     */
+    private boolean dirty = false;
+    
+    /**
+     * Default constructor.
+     * @param givenFile checkpoint file;
+     */
+    public CheckpointStore(java.io.File givenFile) {
+        storeFile = givenFile;
+        if (storeFile.exists()) {
+            try (java.io.Reader storeReader = new java.io.InputStreamReader(new java.io.FileInputStream(storeFile), java.nio.charset.StandardCharsets.UTF_8)) {
+                checkpoints.load(storeReader);
+            } catch (java.io.IOException ex) {
+                IOControl.serverWrapper.log(IOControl.IMPORT_LOGID, 1, "неможливо прочитати файл " + storeFile.getName());
+            }
+        }
+    }
+    
+    /**
+     * Get store of importer.
+     * @param givenPrint unique id of importer;
+     * @return new store;
+     */
+    public static CheckpointStore forImporter(String givenPrint) {
+        return new CheckpointStore(new java.io.File(IOControl.IMPORT_DIR, givenPrint + ".checkpoint"));
+    }
+    
+    /**
+     * Get committed checkpoint value.
+     * @param key name of checkpoint;
+     * @return value or null if checkpoint wasn't set;
+     */
+    public synchronized String get(String key) {
+        return checkpoints.getProperty(key);
+    }
+    
+    /**
+     * Set pending checkpoint value (will be used after next commit).
+     * @param key name of checkpoint;
+     * @param value value of checkpoint (null removes checkpoint);
+     */
+    public synchronized void set(String key, String value) {
+        pending.put(key, value);
+    }
+    
+    /**
+     * Make pending checkpoints committed (will be written on next save).
+     */
+    public synchronized void commit() {
+        for (java.util.Map.Entry<String, String> currEntry : pending.entrySet()) {
+            if (currEntry.getValue() == null) {
+                dirty |= checkpoints.remove(currEntry.getKey()) != null;
+            } else if (!currEntry.getValue().equals(checkpoints.setProperty(currEntry.getKey(), currEntry.getValue()))) {
+                dirty = true;
+            }
+        }
+        pending.clear();
+    }
+    
+    /**
+     * Drop pending checkpoints (their data wasn't added to the system).
+     */
+    public synchronized void discard() {
+        pending.clear();
+    }
+    
+    /**
+     * Write committed checkpoints to file if they were changed.
+     * @throws java.io.IOException if file can't be written;
+     */
+    public synchronized void save() throws java.io.IOException {
+        if (!dirty) {
+            return;
+        }
+        java.io.File tempFile = new java.io.File(storeFile.getPath() + ".tmp");
+        try (java.io.FileOutputStream tempStream = new java.io.FileOutputStream(tempFile)) {
+            java.io.Writer tempWriter = new java.io.OutputStreamWriter(tempStream, java.nio.charset.StandardCharsets.UTF_8);
+            checkpoints.store(tempWriter, null);
+            tempWriter.flush();
+            tempStream.getChannel().force(true);
+        }
+        java.nio.file.Files.move(tempFile.toPath(), storeFile.toPath(), 
+                java.nio.file.StandardCopyOption.REPLACE_EXISTING, 
+                java.nio.file.StandardCopyOption.ATOMIC_MOVE);
+        dirty = false;
+    }
+}
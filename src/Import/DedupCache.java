@@ -0,0 +1,183 @@
+/**
+ * This file is part of libRibbonIO library (check README).
+ * Copyright (C) 2012-2013 Stanislav Nepochatov
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+**/
+
+package Import;
+
+import Utils.IOControl;
+
+/**
+ * Shared deduplication cache of imported messages. Cache keeps 
+ * fingerprints of header and content of recent messages in bounded LRU 
+ * map, so the same story read by several import schemas is added to 
+ * the system only once. Fingerprint of message which server failed 
+ * to add should be dropped by <code>forget</code>, so message can be 
+ * imported again.<br>
+ * <br>
+ * Cache reads next server properties:<br>
+ * <b>import_dedup_size</b> - count of remembered fingerprints (10000 by default).<br>
+ * <br>
+ * Schemas use cache only with <code>import_dedup=1</code> option.
+ * @author Stanislav Nepochatov <spoilt.exile@gmail.com>
+ */
+public class DedupCache {
+    
+    /**
+     * Default count of remembered fingerprints.
+     */
+    public static final int DEFAULT_SIZE = 10000;
+    
+    /**
+     * Limit of remembered fingerprints.
+     */
+    private final int maxSize;
+    
+    /**
+     * LRU map of fingerprints.
+     */
+    private final java.util.LinkedHashMap<Long, Boolean> fingerprints;
+    
+    /**
+     * Count of duplicates.
+     */
+    private final java.util.concurrent.atomic.AtomicLong hits = new java.util.concurrent.atomic.AtomicLong();
+    
+    /**
+     * Count of unique messages.
+     */
+    private final java.util.concurrent.atomic.AtomicLong misses = new java.util.concurrent.atomic.AtomicLong();
+    
+    /**
+     * Default constructor.
+     * @param givenSize count of remembered fingerprints;
+     */
+    public DedupCache(int givenSize) {
+        maxSize = Math.max(givenSize, 1);
+        fingerprints = new java.util.LinkedHashMap<Long, Boolean>(16, 0.75f, true) {
+
+            @Override
+            protected boolean removeEldestEntry(java.util.Map.Entry<Long, Boolean> eldest) {
+                return size() > maxSize;
+            }
+        };
+    }
+    
+    /**
+     * Build cache from server config.
+     * @return new cache;
+     */
+    public static DedupCache fromConfig() {
+        return new DedupCache(IOControl.getIntProperty("import_dedup_size", DEFAULT_SIZE));
+    }
+    
+    /**
+     * Remember message and check if it was seen before.
+     * @param givenMessage message to check;
+     * @return true if message is duplicate / false if message is new;
+     */
+    public boolean checkAndAdd(MessageClasses.Message givenMessage) {
+        long key = DedupCache.fingerprint(givenMessage);
+        synchronized (this) {
+            if (fingerprints.put(key, Boolean.TRUE) != null) {
+                hits.incrementAndGet();
+                return true;
+            }
+        }
+        misses.incrementAndGet();
+        return false;
+    }
+    
+    /**
+     * Drop fingerprint of message which wasn't added to the system.
+     * @param givenMessage message to forget;
+     */
+    public void forget(MessageClasses.Message givenMessage) {
+        long key = DedupCache.fingerprint(givenMessage);
+        synchronized (this) {
+            fingerprints.remove(key);
+        }
+    }
+    
+    /**
+     * Compute fingerprint of message header and content 
+     * (whitespace is normalized).
+     * @param givenMessage message to process;
+     * @return first 64 bits of SHA-1 digest;
+     */
+    private static long fingerprint(MessageClasses.Message givenMessage) {
+        try {
+            java.security.MessageDigest digest = java.security.MessageDigest.getInstance("SHA-1");
+            digest.update(DedupCache.normalize(givenMessage.HEADER).getBytes(java.nio.charset.StandardCharsets.UTF_8));
+            digest.update((byte) 0);
+            digest.update(DedupCache.normalize(givenMessage.CONTENT).getBytes(java.nio.charset.StandardCharsets.UTF_8));
+            return DedupCache.readLong(digest.digest(), 0);
+        } catch (java.security.NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+    
+    /**
+     * Collapse whitespace of text.
+     * @param givenText text to process;
+     * @return normalized text;
+     */
+    private static String normalize(String givenText) {
+        if (givenText == null) {
+            return "";
+        }
+        return givenText.trim().replaceAll("\\s+", " ");
+    }
+    
+    /**
+     * Read long value from byte array.
+     * @param givenBytes array to read;
+     * @param offset offset of value;
+     * @return long value;
+     */
+    private static long readLong(byte[] givenBytes, int offset) {
+        long value = 0;
+        for (int byteIndex = 0; byteIndex < 8; byteIndex++) {
+            value = (value << 8) | (givenBytes[offset + byteIndex] & 0xff);
+        }
+        return value;
+    }
+    
+    /**
+     * Get count of duplicates.
+     * @return count of messages;
+     */
+    public long getHits() {
+        return hits.get();
+    }
+    
+    /**
+     * Get count of unique messages.
+     * @return count of messages;
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+    
+    /**
+     * Get count of remembered fingerprints.
+     * @return size of cache;
+     */
+    public synchronized int size() {
+        return fingerprints.size();
+    }
+}
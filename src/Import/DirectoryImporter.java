@@ -0,0 +1,122 @@
+/**
+ * This file is part of libRibbonIO library (check README).
+ * Copyright (C) 2012-2013 Stanislav Nepochatov
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+**/
+
+package Import;
+
+/**
+ * Base class for importers which read files from directories. Source 
+ * directories are watched for new files and import runs right after 
+ * files appear, regular run every <code>import_timeout</code> is 
+ * kept as a sweep for missed events.<br>
+ * <br>
+ * Importer reads next config options:<br>
+ * <b>import_dir</b> - source directories separated by <code>;</code>;<br>
+ * <b>import_watch_delay</b> - delay of triggered run in milliseconds, 
+ * gives time to finish writing of file (200 by default).
+ * @author Stanislav Nepochatov <spoilt.exile@gmail.com>
+ */
+public abstract class DirectoryImporter extends Importer {
+    
+    /**
+     * Default delay of triggered run.
+     */
+    public static final int DEFAULT_WATCH_DELAY = 200;
+    
+    /**
+     * Delay of triggered run.
+     */
+    protected long watchDelay = DEFAULT_WATCH_DELAY;
+    
+    /**
+     * Flag of triggered run which wasn't started yet.
+     */
+    private final java.util.concurrent.atomic.AtomicBoolean triggered = new java.util.concurrent.atomic.AtomicBoolean(false);
+    
+    /**
+     * Watcher which tracks directories of this importer.
+     */
+    private ImportWatcher currWatcher;
+    
+    /**
+     * Default constructor.
+     * @param givenConfig configuration to init with;
+     */
+    public DirectoryImporter(java.util.Properties givenConfig) {
+        super(givenConfig);
+        if (currConfig.getProperty("import_watch_delay") != null) {
+            try {
+                watchDelay = Long.parseLong(currConfig.getProperty("import_watch_delay").trim());
+            } catch (NumberFormatException ex) {
+                Utils.IOControl.serverWrapper.log(Utils.IOControl.IMPORT_LOGID + ":" + importerName, 1, "некоректне значення параметру import_watch_delay");
+            }
+        }
+    }
+    
+    /**
+     * Get source directories of this importer.
+     * @return array of directories;
+     */
+    protected java.io.File[] getSourceDirs() {
+        String rawDirs = currConfig.getProperty("import_dir");
+        if (rawDirs == null || rawDirs.trim().isEmpty()) {
+            return new java.io.File[0];
+        }
+        java.util.ArrayList<java.io.File> dirs = new java.util.ArrayList<>();
+        for (String currDir : rawDirs.split(";")) {
+            if (!currDir.trim().isEmpty()) {
+                dirs.add(new java.io.File(currDir.trim()));
+            }
+        }
+        return dirs.toArray(new java.io.File[dirs.size()]);
+    }
+    
+    /**
+     * Trigger import after change in source directory.
+     */
+    void onDirEvent() {
+        if (triggered.compareAndSet(false, true)) {
+            this.requestRun(watchDelay);
+        }
+    }
+
+    @Override
+    void onScheduled(Quene givenQuene) {
+        currWatcher = givenQuene.getWatcher();
+        if (currWatcher == null) {
+            return;
+        }
+        for (java.io.File currDir : this.getSourceDirs()) {
+            currWatcher.register(currDir, this);
+        }
+    }
+
+    @Override
+    public void run() {
+        triggered.set(false);
+        super.run();
+    }
+
+    @Override
+    public void stop() {
+        super.stop();
+        if (currWatcher != null) {
+            currWatcher.unregister(this);
+        }
+    }
+}
@@ -0,0 +1,114 @@
+/**
+ * This file is part of libRibbonIO library (check README).
+ * Copyright (C) 2012-2013 Stanislav Nepochatov
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+**/
+
+package Import;
+
+import Utils.IOControl;
+
+/**
+ * Shared watcher of import directories. Single thread waits for 
+ * file system events and triggers importers which registered 
+ * changed directories.
+ * @author Stanislav Nepochatov <spoilt.exile@gmail.com>
+ */
+class ImportWatcher {
+    
+    /**
+     * Watch service of default file system.
+     */
+    private final java.nio.file.WatchService service;
+    
+    /**
+     * Importers by watch keys of their directories.
+     */
+    private final java.util.concurrent.ConcurrentHashMap<java.nio.file.WatchKey, java.util.concurrent.CopyOnWriteArrayList<DirectoryImporter>> importers = new java.util.concurrent.ConcurrentHashMap<>();
+    
+    /**
+     * Default constructor.
+     * @throws java.io.IOException if watch service is unavailable;
+     */
+    ImportWatcher() throws java.io.IOException {
+        service = java.nio.file.FileSystems.getDefault().newWatchService();
+        Thread watchThread = new Thread(new Runnable() {
+
+            @Override
+            public void run() {
+                while (true) {
+                    java.nio.file.WatchKey currKey;
+                    try {
+                        currKey = service.take();
+                    } catch (InterruptedException | java.nio.file.ClosedWatchServiceException ex) {
+                        return;
+                    }
+                    currKey.pollEvents();
+                    java.util.List<DirectoryImporter> keyImporters = importers.get(currKey);
+                    if (keyImporters != null) {
+                        for (DirectoryImporter currImporter : keyImporters) {
+                            currImporter.onDirEvent();
+                        }
+                    }
+                    if (!currKey.reset()) {
+                        importers.remove(currKey);
+                        IOControl.serverWrapper.log(IOControl.IMPORT_LOGID, 2, "тека " + currKey.watchable() + " більше не відстежується");
+                    }
+                }
+            }
+        }, "ImportWatcher");
+        watchThread.setDaemon(true);
+        watchThread.start();
+    }
+    
+    /**
+     * Register directory of importer.
+     * @param givenDir directory to watch;
+     * @param givenImporter importer to trigger;
+     * @return true if directory is watched / false if it can't be registered;
+     */
+    boolean register(java.io.File givenDir, DirectoryImporter givenImporter) {
+        try {
+            java.nio.file.WatchKey dirKey = givenDir.toPath().register(service, 
+                    java.nio.file.StandardWatchEventKinds.ENTRY_CREATE, 
+                    java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY);
+            java.util.concurrent.CopyOnWriteArrayList<DirectoryImporter> keyImporters = importers.get(dirKey);
+            if (keyImporters == null) {
+                importers.putIfAbsent(dirKey, new java.util.concurrent.CopyOnWriteArrayList<DirectoryImporter>());
+                keyImporters = importers.get(dirKey);
+            }
+            keyImporters.addIfAbsent(givenImporter);
+            return true;
+        } catch (java.io.IOException ex) {
+            IOControl.serverWrapper.log(IOControl.IMPORT_LOGID, 1, "неможливо стежити за текою " + givenDir.getAbsolutePath());
+            return false;
+        }
+    }
+    
+    /**
+     * Remove importer from all watched directories.
+     * @param givenImporter importer to remove;
+     */
+    void unregister(DirectoryImporter givenImporter) {
+        for (java.util.Map.Entry<java.nio.file.WatchKey, java.util.concurrent.CopyOnWriteArrayList<DirectoryImporter>> currEntry : importers.entrySet()) {
+            currEntry.getValue().remove(givenImporter);
+            if (currEntry.getValue().isEmpty()) {
+                currEntry.getKey().cancel();
+                importers.remove(currEntry.getKey());
+            }
+        }
+    }
+}
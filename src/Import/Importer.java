@@ -22,10 +22,27 @@ package Import;
 import Utils.IOControl;
 
 /**
- * Import operation class.
+ * Import operation class. Each run of importer is single pass of 
+ * <code>doImport</code>, import quene runs importers on shared 
+ * scheduled executor every <code>import_timeout</code>.<br>
+ * <br>
+ * Timeout may be given with suffix: <code>s</code> for seconds, 
+ * <code>m</code> for minutes and <code>h</code> for hours. Value 
+ * without suffix is number of minutes.<br>
+ * <br>
+ * Messages passed to <code>bufferMessage</code> are added to the system 
+ * by batches: buffer is flushed when it holds <b>import_batch_size</b> 
+ * messages (100 by default), <b>import_batch_linger</b> milliseconds 
+ * after first buffered message (1000 by default) and after each pass.<br>
+ * <br>
+ * Checkpoints set by <code>setCheckpoint</code> are committed and 
+ * written to disk after each successful pass (after buffered messages 
+ * are added) or by <code>commitCheckpoints</code> call, 
+ * <code>getCheckpoint</code> returns committed values only. Checkpoints 
+ * set by failed pass are dropped.
  * @author Stanislav Nepochatov <spoilt.exile@gmail.com>
  */
-public abstract class Importer extends Thread {
+public abstract class Importer implements Runnable {
     
     /**
      * Name of this import schema.
@@ -62,11 +79,61 @@ public abstract class Importer extends Thread {
      */
     protected java.util.Properties currConfig;
     
+    /**
+     * Default import timeout in milliseconds.
+     */
+    public static final int DEFAULT_TIMEOUT = 60 * 1000;
+    
+    /**
+     * Minimal import timeout in milliseconds.
+     */
+    public static final int MIN_TIMEOUT = 1000;
+    
     /**
      * Timeout for check.
      */
     protected Integer timeout;
     
+    /**
+     * Flag of running pass (prevents simultaneous runs of same importer).
+     */
+    private final java.util.concurrent.atomic.AtomicBoolean running = new java.util.concurrent.atomic.AtomicBoolean(false);
+    
+    /**
+     * Actions waiting for end of running pass.
+     */
+    private final java.util.ArrayList<Runnable> idleHooks = new java.util.ArrayList<>();
+    
+    /**
+     * Buffer of messages waiting for batch adding.
+     */
+    private java.util.ArrayList<MessageClasses.Message> messageBuffer = new java.util.ArrayList<>();
+    
+    /**
+     * Scheduled flush of message buffer (or null if buffer is empty).
+     */
+    private java.util.concurrent.ScheduledFuture<?> scheduledFlush;
+    
+    /**
+     * Lock of adding batch (pass waits for flush of linger timer).
+     */
+    private final Object flushLock = new Object();
+    
+    /**
+     * Persistent checkpoints of this importer (created on first use).
+     */
+    private CheckpointStore checkpoints;
+    
+    /**
+     * Flag of requested extra pass.
+     */
+    private final java.util.concurrent.atomic.AtomicBoolean rerun = new java.util.concurrent.atomic.AtomicBoolean(false);
+    
+    /**
+     * Scheduled runs of this importer (or null if importer isn't scheduled).
+     */
+    java.util.concurrent.ScheduledFuture<?> scheduledRun;
+    
     /**
      * Default constructor.
      * @param givenConfig configuration to init with;
@@ -75,27 +142,375 @@ public abstract class Importer extends Thread {
         this.currConfig = givenConfig;
         this.importerName = currConfig.getProperty("import_name");
         this.importerPrint = currConfig.getProperty("import_print");
-        this.timeout = Integer.parseInt(currConfig.getProperty("import_timeout")) * 60 * 1000;
+        this.timeout = this.readTimeout();
         IOControl.serverWrapper.log(IOControl.IMPORT_LOGID, 3, "завантажено схему імпорту '" + this.importerName + "'");
     }
     
+    /**
+     * Add imported message to the system. Schemas with 
+     * <code>import_dedup=1</code> option skip messages which 
+     * were already added by any schema with this option.
+     * @param givenMessage message to add;
+     * @return true if message was added / false if it's duplicate;
+     */
+    protected boolean addMessage(MessageClasses.Message givenMessage) {
+        if (this.isDuplicate(givenMessage)) {
+            return false;
+        }
+        try {
+            IOControl.serverWrapper.addMessage(importerName, currConfig.getProperty("import_type"), givenMessage);
+        } catch (RuntimeException ex) {
+            this.forgetMessage(givenMessage);
+            throw ex;
+        }
+        return true;
+    }
+    
+    /**
+     * Place imported message to buffer for batch adding.
+     * @param givenMessage message to add;
+     * @return true if message was buffered / false if it's duplicate;
+     * @see #addMessage(MessageClasses.Message) 
+     */
+    protected boolean bufferMessage(MessageClasses.Message givenMessage) {
+        if (this.isDuplicate(givenMessage)) {
+            return false;
+        }
+        boolean isFull;
+        synchronized (this) {
+            messageBuffer.add(givenMessage);
+            isFull = messageBuffer.size() >= this.getIntOption("import_batch_size", 100);
+            if (!isFull && scheduledFlush == null) {
+                scheduledFlush = IOControl.quene.getScheduler().schedule(new Runnable() {
+
+                    @Override
+                    public void run() {
+                        flushLingering();
+                    }
+                }, this.getIntOption("import_batch_linger", 1000), java.util.concurrent.TimeUnit.MILLISECONDS);
+            }
+        }
+        if (isFull) {
+            this.flushMessages();
+        }
+        return true;
+    }
+    
+    /**
+     * Add all buffered messages to the system.
+     */
+    protected void flushMessages() {
+        synchronized (flushLock) {
+            java.util.ArrayList<MessageClasses.Message> batch = this.takeBuffer();
+            if (batch == null) {
+                return;
+            }
+            try {
+                IOControl.serverWrapper.addMessages(importerName, currConfig.getProperty("import_type"), batch);
+            } catch (RuntimeException ex) {
+                for (MessageClasses.Message currMessage : batch) {
+                    this.forgetMessage(currMessage);
+                }
+                throw ex;
+            }
+        }
+    }
+    
+    /**
+     * Add buffered messages by linger timer. Failed batch is returned 
+     * to buffer, so pass adds it again before saving checkpoints 
+     * (or fails and doesn't save them).
+     */
+    private void flushLingering() {
+        synchronized (flushLock) {
+            java.util.ArrayList<MessageClasses.Message> batch = this.takeBuffer();
+            if (batch == null) {
+                return;
+            }
+            try {
+                IOControl.serverWrapper.addMessages(importerName, currConfig.getProperty("import_type"), batch);
+            } catch (RuntimeException ex) {
+                IOControl.serverWrapper.postException("Помилка додавання повідомлень при імпорті: " + this.importerName, ex);
+                IOControl.serverWrapper.enableDirtyState(this.currConfig.getProperty("import_type"), importerName, importerPrint);
+                synchronized (this) {
+                    messageBuffer.addAll(0, batch);
+                }
+            }
+        }
+    }
+    
+    /**
+     * Drop pending checkpoints and buffered messages of failed pass 
+     * (next pass reads them again from last committed checkpoint).
+     */
+    private void discardPass() {
+        synchronized (flushLock) {
+            java.util.ArrayList<MessageClasses.Message> batch = this.takeBuffer();
+            if (batch != null) {
+                for (MessageClasses.Message currMessage : batch) {
+                    this.forgetMessage(currMessage);
+                }
+            }
+        }
+        if (checkpoints != null) {
+            checkpoints.discard();
+        }
+    }
+    
+    /**
+     * Take all buffered messages and cancel scheduled flush.
+     * @return buffered messages or null if buffer is empty;
+     */
+    private synchronized java.util.ArrayList<MessageClasses.Message> takeBuffer() {
+        if (scheduledFlush != null) {
+            scheduledFlush.cancel(false);
+            scheduledFlush = null;
+        }
+        if (messageBuffer.isEmpty()) {
+            return null;
+        }
+        java.util.ArrayList<MessageClasses.Message> batch = messageBuffer;
+        messageBuffer = new java.util.ArrayList<>();
+        return batch;
+    }
+    
+    /**
+     * Get checkpoint store of this importer.
+     * @return store;
+     */
+    private synchronized CheckpointStore getCheckpoints() {
+        if (checkpoints == null) {
+            checkpoints = CheckpointStore.forImporter(importerPrint != null ? importerPrint : importerName);
+        }
+        return checkpoints;
+    }
+    
+    /**
+     * Get committed checkpoint.
+     * @param key name of checkpoint;
+     * @param defaultValue value to return if checkpoint wasn't set;
+     * @return value of checkpoint;
+     */
+    protected String getCheckpoint(String key, String defaultValue) {
+        String value = this.getCheckpoints().get(key);
+        return value != null ? value : defaultValue;
+    }
+    
+    /**
+     * Set checkpoint (will be committed and written after current pass).
+     * @param key name of checkpoint;
+     * @param value value of checkpoint (null removes checkpoint);
+     */
+    protected void setCheckpoint(String key, String value) {
+        this.getCheckpoints().set(key, value);
+    }
+    
+    /**
+     * Add buffered messages, commit checkpoints and write them to disk now.
+     * @throws java.io.IOException if checkpoints can't be written;
+     */
+    protected void commitCheckpoints() throws java.io.IOException {
+        this.flushMessages();
+        if (checkpoints != null) {
+            checkpoints.commit();
+            checkpoints.save();
+        }
+    }
+    
+    /**
+     * Check message in deduplication cache (if schema has <code>import_dedup=1</code> option).
+     * @param givenMessage message to check;
+     * @return true if message is duplicate;
+     */
+    private boolean isDuplicate(MessageClasses.Message givenMessage) {
+        if ("1".equals(currConfig.getProperty("import_dedup")) && IOControl.quene.getDedupCache().checkAndAdd(givenMessage)) {
+            IOControl.serverWrapper.log(IOControl.IMPORT_LOGID + ":" + importerName, 3, "повідомлення '" + givenMessage.HEADER + "' вже імпортовано");
+            return true;
+        }
+        return false;
+    }
+    
+    /**
+     * Drop message from deduplication cache after server failed to add it 
+     * (so next pass can import it again).
+     * @param givenMessage message to forget;
+     */
+    private void forgetMessage(MessageClasses.Message givenMessage) {
+        if ("1".equals(currConfig.getProperty("import_dedup"))) {
+            IOControl.quene.getDedupCache().forget(givenMessage);
+        }
+    }
+    
+    /**
+     * Get integer option of this schema.
+     * @param key name of option;
+     * @param defaultValue value to return if option is absent or broken;
+     * @return value of option;
+     */
+    protected int getIntOption(String key, int defaultValue) {
+        String rawValue = currConfig.getProperty(key);
+        if (rawValue == null || rawValue.trim().isEmpty()) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(rawValue.trim());
+        } catch (NumberFormatException ex) {
+            IOControl.serverWrapper.log(IOControl.IMPORT_LOGID + ":" + importerName, 1, "некоректне значення параметру " + key + ": " + rawValue);
+            return defaultValue;
+        }
+    }
+    
+    /**
+     * Parse import timeout value.
+     * @param rawValue value with optional suffix (<code>s</code>, <code>m</code> or <code>h</code>);
+     * @return timeout in milliseconds;
+     * @throws NumberFormatException if value is empty, broken or too big;
+     */
+    public static Integer parseTimeout(String rawValue) {
+        String value = rawValue == null ? "" : rawValue.trim().toLowerCase();
+        if (value.isEmpty()) {
+            throw new NumberFormatException("empty timeout");
+        }
+        int multiplier = 60 * 1000;
+        if (value.endsWith("s")) {
+            multiplier = 1000;
+        } else if (value.endsWith("m")) {
+            multiplier = 60 * 1000;
+        } else if (value.endsWith("h")) {
+            multiplier = 60 * 60 * 1000;
+        }
+        if (!Character.isDigit(value.charAt(value.length() - 1))) {
+            value = value.substring(0, value.length() - 1).trim();
+        }
+        long result = (long) Integer.parseInt(value) * multiplier;
+        if (result > Integer.MAX_VALUE) {
+            throw new NumberFormatException("timeout is too big: " + rawValue);
+        }
+        return (int) result;
+    }
+    
+    /**
+     * Read timeout of this schema (<code>import_timeout</code> option). 
+     * Broken or absent value is replaced by default timeout, 
+     * too short value is raised to minimal timeout.
+     * @return timeout in milliseconds;
+     */
+    private Integer readTimeout() {
+        String rawValue = currConfig.getProperty("import_timeout");
+        int result;
+        try {
+            result = Importer.parseTimeout(rawValue);
+        } catch (NumberFormatException ex) {
+            IOControl.serverWrapper.log(IOControl.IMPORT_LOGID + ":" + importerName, 1, "некоректне значення параметру import_timeout: " + rawValue);
+            return DEFAULT_TIMEOUT;
+        }
+        if (result < MIN_TIMEOUT) {
+            IOControl.serverWrapper.log(IOControl.IMPORT_LOGID + ":" + importerName, 2, "значення параметру import_timeout " + rawValue + " замале, використовується " + MIN_TIMEOUT + " мс");
+            return MIN_TIMEOUT;
+        }
+        return result;
+    }
+    
+    /**
+     * Get import timeout.
+     * @return timeout in milliseconds;
+     */
+    public Integer getTimeout() {
+        return timeout;
+    }
+    
+    /**
+     * Schedule this importer on import quene 
+     * (adapter for code which started importer as thread).
+     */
+    public void start() {
+        IOControl.quene.schedule(this, 0);
+    }
+    
+    /**
+     * Request extra pass of this importer out of schedule. If importer 
+     * is running now, pass will be repeated right after current one.
+     * @param givenDelay delay of pass in milliseconds;
+     */
+    public void requestRun(long givenDelay) {
+        rerun.set(true);
+        IOControl.quene.trigger(this, givenDelay);
+    }
+    
+    /**
+     * Called by import quene when importer is scheduled.
+     * @param givenQuene quene which schedules importer;
+     */
+    void onScheduled(Quene givenQuene) {
+    }
+    
+    /**
+     * Run action when current pass of importer is finished 
+     * (at once if importer isn't running now).
+     * @param givenHook action to run;
+     */
+    void whenIdle(Runnable givenHook) {
+        synchronized (idleHooks) {
+            if (running.get()) {
+                idleHooks.add(givenHook);
+                return;
+            }
+        }
+        givenHook.run();
+    }
+    
+    /**
+     * Stop scheduled runs of this importer.
+     */
+    public void stop() {
+        status = false;
+        if (scheduledRun != null) {
+            scheduledRun.cancel(false);
+        }
+    }
+    
     @Override
     public void run() {
-        while (status) {
-            if (dirtyStatus) {
-                tryRecover();
-            }
+        while (status && running.compareAndSet(false, true)) {
             try {
+                rerun.set(false);
+                if (dirtyStatus) {
+                    tryRecover();
+                }
                 doImport();
+                this.commitCheckpoints();
             } catch (Exception ex) {
                 this.exStatus = ex;
+                this.discardPass();
                 IOControl.serverWrapper.postException("Помилка при імпорті: " + this.importerName, ex);
                 IOControl.serverWrapper.enableDirtyState(this.currConfig.getProperty("import_type"), importerName, importerPrint);
+            } finally {
+                this.finishPass();
+            }
+            if (!rerun.get()) {
+                break;
             }
+        }
+    }
+    
+    /**
+     * Mark pass as finished and run actions which were waiting for it.
+     */
+    private void finishPass() {
+        java.util.ArrayList<Runnable> hooks;
+        synchronized (idleHooks) {
+            running.set(false);
+            if (idleHooks.isEmpty()) {
+                return;
+            }
+            hooks = new java.util.ArrayList<>(idleHooks);
+            idleHooks.clear();
+        }
+        for (Runnable currHook : hooks) {
             try {
-                Thread.sleep(timeout);
-            } catch (InterruptedException ex) {
-                
+                currHook.run();
+            } catch (RuntimeException ex) {
+                IOControl.serverWrapper.postException("Помилка при завершенні імпорту: " + this.importerName, ex);
             }
         }
     }
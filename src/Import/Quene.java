@@ -23,7 +23,11 @@ import Utils.IOControl;
 import java.io.File;
 
 /**
- * Import quene class.
+ * Import quene class. Importers run on shared scheduled executor, size 
+ * of executor is set by <b>import_pool_size</b> server property (count 
+ * of processors by default). First runs of importers are spread over 
+ * <b>import_stagger</b> milliseconds (one minute or shortest timeout 
+ * by default) to avoid simultaneous polls.
  * @author Stanislav Nepochatov <spoilt.exile@gmail.com>
  */
 public class Quene {
@@ -31,7 +35,22 @@ public class Quene {
     /**
      * List of current running instances of <code>Importer</code> class.
      */
-    private java.util.ArrayList<Importer> importList = new java.util.ArrayList();
+    private final java.util.concurrent.CopyOnWriteArrayList<Importer> importList = new java.util.concurrent.CopyOnWriteArrayList<>();
+    
+    /**
+     * Importers by names of their config files.
+     */
+    private final java.util.concurrent.ConcurrentHashMap<String, Importer> importFiles = new java.util.concurrent.ConcurrentHashMap<>();
+    
+    /**
+     * Flag of started import (reloaded importers are scheduled at once).
+     */
+    private volatile boolean started = false;
+    
+    /**
+     * Watcher of import config dir (or null if hot reload is disabled).
+     */
+    private Utils.ConfigWatcher configWatcher;
     
     /**
      * List of current registred modules.
@@ -43,6 +62,21 @@ public class Quene {
      */
     public String importDirPath;
     
+    /**
+     * Shared executor of import runs.
+     */
+    private java.util.concurrent.ScheduledThreadPoolExecutor scheduler;
+    
+    /**
+     * Shared watcher of import directories.
+     */
+    private ImportWatcher watcher;
+    
+    /**
+     * Shared deduplication cache of imported messages.
+     */
+    private final DedupCache dedupCache;
+    
     /**
      * Default constructor.
      * @param pluginPath path to search plugins.
@@ -50,6 +84,7 @@ public class Quene {
      */
     public Quene (String pluginPath, String givenImportDirPath) {
         importDirPath = givenImportDirPath;
+        dedupCache = DedupCache.fromConfig();
         this.moduleList = IOControl.loadModules(pluginPath);
         java.io.File importPropsDir = new java.io.File(givenImportDirPath);
         if (!importPropsDir.exists()) {
@@ -67,25 +102,100 @@ public class Quene {
                 }
             }
         });
-        for (java.io.File importPropertyFile : importProps) {
-            java.util.Properties importConfig = new java.util.Properties();
-            try {
-                importConfig.load(new java.io.FileReader(importPropertyFile));
-            } catch (java.io.FileNotFoundException ex) {
-                IOControl.serverWrapper.log(IOControl.IMPORT_LOGID, 1, "неможливо знайти файл " + importPropertyFile.getName());
-            } catch (java.io.IOException ex) {
-                IOControl.serverWrapper.log(IOControl.IMPORT_LOGID, 1, "помилка при зчитуванні файлу " + importPropertyFile.getName());
-            }
-            Importer newImport = this.getNewInstanceForType(importConfig);
-            if (newImport != null) {
-                this.importList.add(newImport);
-            } else {
-                IOControl.serverWrapper.log(IOControl.IMPORT_LOGID, 2, "заванатження модулю для " + importPropertyFile.getName() + " завершилось з помилкою.");
+        java.util.LinkedHashMap<File, Importer> loadedImporters = IOControl.loadSchemaMap(importProps, IOControl.IMPORT_LOGID, new Utils.SchemaFactory<Importer>() {
+
+            @Override
+            public Importer create(java.util.Properties givenConfig) {
+                return getNewInstanceForType(givenConfig);
             }
+        });
+        for (java.util.Map.Entry<File, Importer> loadedEntry : loadedImporters.entrySet()) {
+            this.importFiles.put(loadedEntry.getKey().getName(), loadedEntry.getValue());
+            this.importList.add(loadedEntry.getValue());
         }
         if (this.importList.isEmpty()) {
             IOControl.serverWrapper.log(IOControl.IMPORT_LOGID, 2, "система не знайшла жодної схеми імпорту!");
         }
+        this.configWatcher = Utils.ConfigWatcher.watch(importPropsDir, ".import", new Utils.ConfigWatcher.Listener() {
+
+            @Override
+            public void configChanged(java.util.Set<File> changedFiles, java.util.Set<File> removedFiles) {
+                reloadImporters(changedFiles, removedFiles);
+            }
+        });
+    }
+    
+    /**
+     * Rebuild changed importers. Old importers are stopped (running pass 
+     * is finished), new ones are scheduled after that if import is started. 
+     * Importer with broken config keeps its old version.
+     * @param changedFiles created or modified config files;
+     * @param removedFiles deleted config files;
+     */
+    public synchronized void reloadImporters(java.util.Set<File> changedFiles, java.util.Set<File> removedFiles) {
+        for (File removedFile : removedFiles) {
+            Importer oldImporter = this.importFiles.remove(removedFile.getName());
+            if (oldImporter != null) {
+                oldImporter.stop();
+                this.importList.remove(oldImporter);
+                IOControl.serverWrapper.log(IOControl.IMPORT_LOGID, 2, "схему імпорту '" + oldImporter.importerName + "' видалено");
+            }
+        }
+        java.util.LinkedHashMap<File, Importer> reloadedImporters = IOControl.loadSchemaMap(changedFiles.toArray(new File[changedFiles.size()]), 
+                IOControl.IMPORT_LOGID, new Utils.SchemaFactory<Importer>() {
+
+            @Override
+            public Importer create(java.util.Properties givenConfig) {
+                return getNewInstanceForType(givenConfig);
+            }
+        });
+        for (File changedFile : changedFiles) {
+            Importer newImporter = reloadedImporters.get(changedFile);
+            if (newImporter == null) {
+                if (this.importFiles.containsKey(changedFile.getName())) {
+                    IOControl.serverWrapper.log(IOControl.IMPORT_LOGID, 1, "схему з файлу " + changedFile.getName() + " не оновлено, використовується попередня версія");
+                }
+                continue;
+            }
+            Importer oldImporter = this.importFiles.put(changedFile.getName(), newImporter);
+            if (oldImporter != null) {
+                oldImporter.stop();
+                this.importList.remove(oldImporter);
+            }
+            this.importList.add(newImporter);
+            if (started) {
+                this.scheduleAfter(newImporter, oldImporter);
+            }
+            IOControl.serverWrapper.log(IOControl.IMPORT_LOGID, 2, "схему імпорту '" + newImporter.importerName + "' оновлено");
+        }
+    }
+    
+    /**
+     * Schedule new version of importer when old version finishes its pass 
+     * (so new version reads checkpoints saved by old one).
+     * @param newImporter new version of importer;
+     * @param oldImporter old version of importer (or null);
+     */
+    private void scheduleAfter(final Importer newImporter, final Importer oldImporter) {
+        if (oldImporter == null) {
+            this.schedule(newImporter, 0);
+        } else {
+            oldImporter.whenIdle(new Runnable() {
+
+                @Override
+                public void run() {
+                    schedule(newImporter, 0);
+                }
+            });
+        }
+    }
+    
+    /**
+     * Get shared deduplication cache.
+     * @return cache;
+     */
+    public DedupCache getDedupCache() {
+        return dedupCache;
     }
     
     /**
@@ -118,13 +228,83 @@ public class Quene {
         return null;
     }
 
+    /**
+     * Get shared executor of import runs (creates it on first call).
+     * @return scheduled executor;
+     */
+    synchronized java.util.concurrent.ScheduledThreadPoolExecutor getScheduler() {
+        if (scheduler == null) {
+            int poolSize = IOControl.getIntProperty("import_pool_size", Runtime.getRuntime().availableProcessors());
+            scheduler = new java.util.concurrent.ScheduledThreadPoolExecutor(Math.max(poolSize, 1), new java.util.concurrent.ThreadFactory() {
+                
+                private final java.util.concurrent.atomic.AtomicInteger threadCount = new java.util.concurrent.atomic.AtomicInteger();
+
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread importThread = new Thread(r, "ImportWorker-" + threadCount.incrementAndGet());
+                    importThread.setDaemon(true);
+                    return importThread;
+                }
+            });
+            scheduler.setRemoveOnCancelPolicy(true);
+        }
+        return scheduler;
+    }
+    
+    /**
+     * Schedule periodic runs of importer.
+     * @param givenImporter importer to schedule;
+     * @param initialDelay delay of first run in milliseconds;
+     */
+    public synchronized void schedule(Importer givenImporter, long initialDelay) {
+        if (givenImporter.scheduledRun != null && !givenImporter.scheduledRun.isDone()) {
+            return;
+        }
+        givenImporter.scheduledRun = this.getScheduler().scheduleWithFixedDelay(givenImporter, 
+                initialDelay, Math.max(givenImporter.getTimeout(), Importer.MIN_TIMEOUT), java.util.concurrent.TimeUnit.MILLISECONDS);
+        givenImporter.onScheduled(this);
+    }
+    
+    /**
+     * Run single pass of importer out of schedule.
+     * @param givenImporter importer to run;
+     * @param givenDelay delay of pass in milliseconds;
+     */
+    public void trigger(Importer givenImporter, long givenDelay) {
+        this.getScheduler().schedule(givenImporter, givenDelay, java.util.concurrent.TimeUnit.MILLISECONDS);
+    }
+    
+    /**
+     * Get shared watcher of import directories (creates it on first call).
+     * @return watcher or null if file system doesn't support watching;
+     */
+    synchronized ImportWatcher getWatcher() {
+        if (watcher == null) {
+            try {
+                watcher = new ImportWatcher();
+            } catch (java.io.IOException ex) {
+                IOControl.serverWrapper.log(IOControl.IMPORT_LOGID, 1, "неможливо стежити за теками імпорту, використовується періодична перевірка");
+                return null;
+            }
+        }
+        return watcher;
+    }
+
     /**
      * Run all import schemas.
      */
-    public void importRun() {
-        java.util.ListIterator<Importer> importIter = this.importList.listIterator();
-        while (importIter.hasNext()) {
-            importIter.next().start();
+    public synchronized void importRun() {
+        started = true;
+        if (this.importList.isEmpty()) {
+            return;
+        }
+        long stagger = 60 * 1000;
+        for (Importer currImporter : this.importList) {
+            stagger = Math.min(stagger, currImporter.getTimeout());
+        }
+        stagger = IOControl.getIntProperty("import_stagger", (int) stagger);
+        for (int importIndex = 0; importIndex < this.importList.size(); importIndex++) {
+            this.schedule(this.importList.get(importIndex), stagger * importIndex / this.importList.size());
         }
         IOControl.serverWrapper.log(IOControl.IMPORT_LOGID, 3, "запуск усіх схем імпорту");
     }
@@ -0,0 +1,270 @@
+/**
+ * This file is part of libRibbonIO library (check README).
+ * Copyright (C) 2012-2013 Stanislav Nepochatov
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+**/
+
+package Import;
+
+import Utils.IOControl;
+
+/**
+ * Base class for importers with heavy parsing. Import pass is split 
+ * into stages: schema thread fetches raw items, items are parsed on 
+ * shared pool of parser threads and parsed messages are ingested by 
+ * schema thread in order of fetch (or in order of parsing for schemas 
+ * with <code>import_ordered=0</code>). Parser threads only hand results 
+ * over, so slow <code>ingest</code> never holds them.<br>
+ * <br>
+ * Count of items between fetch and ingest is bounded by 
+ * <b>import_stage_window</b> option (twice the count of parser threads 
+ * by default), fetch ingests ready items and waits for parsers while 
+ * window is full. Size of shared parser 
+ * pool is set by <b>import_parse_threads</b> server property (count of 
+ * processors by default).
+ * @param <T> type of raw item;
+ * @author Stanislav Nepochatov <spoilt.exile@gmail.com>
+ */
+public abstract class StagedImporter<T> extends Importer {
+    
+    /**
+     * Shared pool of parser threads.
+     */
+    private static java.util.concurrent.ThreadPoolExecutor parsePool;
+    
+    /**
+     * Size of stage window.
+     */
+    private int windowSize;
+    
+    /**
+     * Keep order of fetch while ingesting.
+     */
+    private final boolean ordered;
+    
+    /**
+     * Sequence number of next fetched item.
+     */
+    private long fetchSequence;
+    
+    /**
+     * Sequence number of next item to ingest.
+     */
+    private long ingestSequence;
+    
+    /**
+     * Count of items between fetch and ingest.
+     */
+    private int inFlight;
+    
+    /**
+     * Parsed items waiting for their turn to ingest.
+     */
+    private final java.util.HashMap<Long, Object> parsed = new java.util.HashMap<>();
+    
+    /**
+     * Marker of item which gives no message.
+     */
+    private static final Object SKIPPED = new Object();
+    
+    /**
+     * Default constructor.
+     * @param givenConfig configuration to init with;
+     */
+    public StagedImporter(java.util.Properties givenConfig) {
+        super(givenConfig);
+        ordered = !"0".equals(currConfig.getProperty("import_ordered"));
+    }
+    
+    /**
+     * Get shared pool of parser threads (creates it on first call).
+     * @return executor;
+     */
+    private static synchronized java.util.concurrent.ThreadPoolExecutor getParsePool() {
+        if (parsePool == null) {
+            int poolSize = Math.max(IOControl.getIntProperty("import_parse_threads", Runtime.getRuntime().availableProcessors()), 1);
+            parsePool = new java.util.concurrent.ThreadPoolExecutor(poolSize, poolSize, 0L, java.util.concurrent.TimeUnit.MILLISECONDS, 
+                    new java.util.concurrent.LinkedBlockingQueue<Runnable>(), new java.util.concurrent.ThreadFactory() {
+                
+                private final java.util.concurrent.atomic.AtomicInteger threadCount = new java.util.concurrent.atomic.AtomicInteger();
+
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread parseThread = new Thread(r, "ImportParser-" + threadCount.incrementAndGet());
+                    parseThread.setDaemon(true);
+                    return parseThread;
+                }
+            });
+        }
+        return parsePool;
+    }
+    
+    /**
+     * Fetch raw items and pass each of them to <code>emit</code> method.
+     * @throws Exception if fetch failed;
+     */
+    protected abstract void fetch() throws Exception;
+    
+    /**
+     * Parse and normalize raw item (called on parser threads).
+     * @param rawItem item to parse;
+     * @return message or null if item should be skipped;
+     * @throws Exception if item is broken;
+     */
+    protected abstract MessageClasses.Message parse(T rawItem) throws Exception;
+    
+    /**
+     * Add parsed message to the system (called on schema thread). 
+     * Default implementation places message to batch buffer.
+     * @param givenMessage message to add;
+     */
+    protected void ingest(MessageClasses.Message givenMessage) {
+        this.bufferMessage(givenMessage);
+    }
+    
+    /**
+     * Pass fetched item to parse stage, ingests ready items and 
+     * waits while stage window is full.
+     * @param rawItem fetched item;
+     * @throws InterruptedException if fetch thread was interrupted;
+     */
+    protected void emit(final T rawItem) throws InterruptedException {
+        this.ingestReady(windowSize - 1);
+        final long itemSequence;
+        synchronized (parsed) {
+            itemSequence = fetchSequence++;
+            inFlight++;
+        }
+        StagedImporter.getParsePool().execute(new Runnable() {
+
+            @Override
+            public void run() {
+                Object parsedMessage = null;
+                try {
+                    parsedMessage = parse(rawItem);
+                } catch (Exception ex) {
+                    IOControl.serverWrapper.postException("Помилка розбору повідомлення при імпорті: " + importerName, ex);
+                } finally {
+                    complete(itemSequence, parsedMessage != null ? parsedMessage : SKIPPED);
+                }
+            }
+        });
+    }
+    
+    /**
+     * Hand parsed item over to schema thread.
+     * @param itemSequence sequence number of item;
+     * @param givenMessage parsed message or <code>SKIPPED</code> marker;
+     */
+    private void complete(long itemSequence, Object givenMessage) {
+        synchronized (parsed) {
+            parsed.put(itemSequence, givenMessage);
+            parsed.notifyAll();
+        }
+    }
+    
+    /**
+     * Ingest ready items on current thread until count of items 
+     * between fetch and ingest is not greater than given limit 
+     * and no more items are ready.
+     * @param givenLimit limit of items between fetch and ingest;
+     * @throws InterruptedException if thread was interrupted while waiting for parsers;
+     */
+    private void ingestReady(int givenLimit) throws InterruptedException {
+        java.util.ArrayList<Object> readyItems = new java.util.ArrayList<>();
+        while (true) {
+            synchronized (parsed) {
+                this.takeReady(readyItems);
+                while (readyItems.isEmpty() && inFlight > givenLimit) {
+                    parsed.wait();
+                    this.takeReady(readyItems);
+                }
+                inFlight -= readyItems.size();
+            }
+            if (readyItems.isEmpty()) {
+                return;
+            }
+            for (Object currItem : readyItems) {
+                this.ingestSafe(currItem);
+            }
+            readyItems.clear();
+        }
+    }
+    
+    /**
+     * Move items which may be ingested now from parsed map to list 
+     * (must be called under lock of parsed map).
+     * @param givenList list to fill;
+     */
+    private void takeReady(java.util.List<Object> givenList) {
+        if (!ordered) {
+            givenList.addAll(parsed.values());
+            parsed.clear();
+            return;
+        }
+        Object nextMessage;
+        while ((nextMessage = parsed.remove(ingestSequence)) != null) {
+            ingestSequence++;
+            givenList.add(nextMessage);
+        }
+    }
+    
+    /**
+     * Ingest message and log error if it fails.
+     * @param givenMessage parsed message or <code>SKIPPED</code> marker;
+     */
+    private void ingestSafe(Object givenMessage) {
+        try {
+            if (givenMessage != SKIPPED) {
+                this.ingest((MessageClasses.Message) givenMessage);
+            }
+        } catch (RuntimeException ex) {
+            IOControl.serverWrapper.postException("Помилка додавання повідомлення при імпорті: " + importerName, ex);
+        }
+    }
+
+    @Override
+    protected void doImport() {
+        windowSize = Math.max(this.getIntOption("import_stage_window", StagedImporter.getParsePool().getMaximumPoolSize() * 2), 1);
+        synchronized (parsed) {
+            parsed.clear();
+            fetchSequence = 0;
+            ingestSequence = 0;
+            inFlight = 0;
+        }
+        Exception fetchException = null;
+        try {
+            this.fetch();
+        } catch (Exception ex) {
+            fetchException = ex;
+        }
+        boolean interrupted = false;
+        while (true) {
+            try {
+                this.ingestReady(0);
+                break;
+            } catch (InterruptedException ex) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        if (fetchException != null) {
+            throw new RuntimeException("Помилка отримання повідомлень", fetchException);
+        }
+    }
+}
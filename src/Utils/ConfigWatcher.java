@@ -0,0 +1,147 @@
+/**
+ * This file is part of libRibbonIO library (check README).
+ * Copyright (C) 2012-2013 Stanislav Nepochatov
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+**/
+
+package Utils;
+
+/**
+ * Watcher of schema config directory. Watcher collects changes of 
+ * config files with given extension and passes them to listener after 
+ * directory stays quiet for <b>config_reload_delay</b> milliseconds 
+ * (1000 by default), so half-written files aren't loaded.
+ * @author Stanislav Nepochatov <spoilt.exile@gmail.com>
+ */
+public class ConfigWatcher {
+    
+    /**
+     * Listener of config changes.
+     */
+    public static interface Listener {
+        
+        /**
+         * Apply changes of config files.
+         * @param changedFiles created or modified files;
+         * @param removedFiles deleted files;
+         */
+        void configChanged(java.util.Set<java.io.File> changedFiles, java.util.Set<java.io.File> removedFiles);
+    }
+    
+    /**
+     * Watch service of config dir.
+     */
+    private final java.nio.file.WatchService service;
+    
+    /**
+     * Watcher thread.
+     */
+    private final Thread watchThread;
+    
+    /**
+     * Start watching of config dir.
+     * @param givenDir config dir;
+     * @param givenSuffix extension of config files (like <code>.export</code>);
+     * @param givenListener listener of changes;
+     * @throws java.io.IOException if dir can't be watched;
+     */
+    public ConfigWatcher(final java.io.File givenDir, final String givenSuffix, final Listener givenListener) throws java.io.IOException {
+        service = java.nio.file.FileSystems.getDefault().newWatchService();
+        givenDir.toPath().register(service, 
+                java.nio.file.StandardWatchEventKinds.ENTRY_CREATE, 
+                java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY, 
+                java.nio.file.StandardWatchEventKinds.ENTRY_DELETE);
+        final long quietTime = IOControl.getIntProperty("config_reload_delay", 1000);
+        watchThread = new Thread(new Runnable() {
+
+            @Override
+            public void run() {
+                while (true) {
+                    java.util.TreeSet<String> names = new java.util.TreeSet<>();
+                    try {
+                        java.nio.file.WatchKey currKey = service.take();
+                        while (currKey != null) {
+                            for (java.nio.file.WatchEvent<?> currEvent : currKey.pollEvents()) {
+                                Object context = currEvent.context();
+                                if (context != null && context.toString().endsWith(givenSuffix)) {
+                                    names.add(context.toString());
+                                }
+                            }
+                            if (!currKey.reset()) {
+                                IOControl.serverWrapper.log(IOControl.LOG_ID, 1, "тека " + givenDir.getAbsolutePath() + " більше не відстежується");
+                                return;
+                            }
+                            currKey = service.poll(quietTime, java.util.concurrent.TimeUnit.MILLISECONDS);
+                        }
+                    } catch (InterruptedException | java.nio.file.ClosedWatchServiceException ex) {
+                        return;
+                    }
+                    if (names.isEmpty()) {
+                        continue;
+                    }
+                    java.util.LinkedHashSet<java.io.File> changedFiles = new java.util.LinkedHashSet<>();
+                    java.util.LinkedHashSet<java.io.File> removedFiles = new java.util.LinkedHashSet<>();
+                    for (String currName : names) {
+                        java.io.File currFile = new java.io.File(givenDir, currName);
+                        if (currFile.isFile()) {
+                            changedFiles.add(currFile);
+                        } else {
+                            removedFiles.add(currFile);
+                        }
+                    }
+                    try {
+                        givenListener.configChanged(changedFiles, removedFiles);
+                    } catch (RuntimeException ex) {
+                        IOControl.serverWrapper.postException("Помилка перезавантаження схем з теки " + givenDir.getAbsolutePath(), ex);
+                    }
+                }
+            }
+        }, "ConfigWatcher-" + givenDir.getName());
+        watchThread.setDaemon(true);
+        watchThread.start();
+    }
+    
+    /**
+     * Start watching if hot reload is enabled (<b>config_hot_reload</b> 
+     * server property, enabled by default).
+     * @param givenDir config dir;
+     * @param givenSuffix extension of config files;
+     * @param givenListener listener of changes;
+     * @return watcher or null if hot reload is disabled or unavailable;
+     */
+    public static ConfigWatcher watch(java.io.File givenDir, String givenSuffix, Listener givenListener) {
+        if (IOControl.getIntProperty("config_hot_reload", 1) != 1) {
+            return null;
+        }
+        try {
+            return new ConfigWatcher(givenDir, givenSuffix, givenListener);
+        } catch (java.io.IOException ex) {
+            IOControl.serverWrapper.log(IOControl.LOG_ID, 1, "неможливо стежити за текою " + givenDir.getAbsolutePath() + ", перезавантаження схем вимкнено");
+            return null;
+        }
+    }
+    
+    /**
+     * Stop watching.
+     */
+    public void close() {
+        try {
+            service.close();
+        } catch (java.io.IOException ex) {
+            IOControl.serverWrapper.log(IOControl.LOG_ID, 1, "помилка закриття спостерігача тек");
+        }
+    }
+}
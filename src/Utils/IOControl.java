@@ -23,9 +23,6 @@ import java.io.File;
 import java.io.IOException;
 import java.net.URL;
 import java.util.ArrayList;
-import java.util.Enumeration;
-import java.util.jar.JarEntry;
-import java.util.jar.JarFile;
 
 /**
  * IO subsystem general control class.
@@ -78,6 +75,11 @@ public final class IOControl {
      */
     public static Export.Dispatcher dispathcer;
     
+    /**
+     * Load time of schema config files (milliseconds by file name).
+     */
+    private static final java.util.concurrent.ConcurrentHashMap<String, Long> schemaLoadTimes = new java.util.concurrent.ConcurrentHashMap<>();
+    
     /**
      * Load wrapper to the IO subsystem.
      * @param givenWrapper wrapper to load.
@@ -113,57 +115,228 @@ public final class IOControl {
     }
     
     /**
-     * Load import modules.
+     * Get integer value of server property.
+     * @param key name of property;
+     * @param defaultValue value to return if property is absent or broken;
+     * @return value of property or default value;
+     */
+    public static int getIntProperty(String key, int defaultValue) {
+        String rawValue = IOControl.serverWrapper.getProperty(key);
+        if (rawValue == null || rawValue.trim().isEmpty()) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(rawValue.trim());
+        } catch (NumberFormatException ex) {
+            IOControl.serverWrapper.log(LOG_ID, 1, "некоректне значення параметру " + key + ": " + rawValue);
+            return defaultValue;
+        }
+    }
+    
+    /**
+     * Check if server wrapper can find messages by index 
+     * (overrides <code>SystemWrapper.getMessage</code>).
+     * @return true if messages can be restored by index;
+     */
+    public static boolean canRestoreMessages() {
+        try {
+            return IOControl.serverWrapper.getClass().getMethod("getMessage", String.class).getDeclaringClass() != SystemWrapper.class;
+        } catch (NoSuchMethodException ex) {
+            return false;
+        }
+    }
+    
+    /**
+     * Load schemas from config files in parallel (<b>schema_load_threads</b> 
+     * server property, count of processors by default). Load time of each 
+     * schema is logged, schemas loaded longer than <b>schema_slow_load_ms</b> 
+     * (1000 by default) are reported as slow.
+     * @param <T> type of schema;
+     * @param configFiles schema config files;
+     * @param logId log id of subsystem;
+     * @param givenFactory factory of schemas;
+     * @return loaded schemas in order of files;
+     */
+    public static <T> java.util.List<T> loadSchemas(File[] configFiles, String logId, SchemaFactory<T> givenFactory) {
+        return new ArrayList<>(IOControl.loadSchemaMap(configFiles, logId, givenFactory).values());
+    }
+    
+    /**
+     * Load schemas from config files in parallel.
+     * @param <T> type of schema;
+     * @param configFiles schema config files;
+     * @param logId log id of subsystem;
+     * @param givenFactory factory of schemas;
+     * @return loaded schemas by their config files (in order of files);
+     * @see #loadSchemas(java.io.File[], java.lang.String, Utils.SchemaFactory) 
+     */
+    public static <T> java.util.LinkedHashMap<File, T> loadSchemaMap(File[] configFiles, final String logId, final SchemaFactory<T> givenFactory) {
+        java.util.LinkedHashMap<File, T> schemas = new java.util.LinkedHashMap<>();
+        if (configFiles == null || configFiles.length == 0) {
+            return schemas;
+        }
+        final int slowLimit = IOControl.getIntProperty("schema_slow_load_ms", 1000);
+        int loadThreads = Math.min(IOControl.getIntProperty("schema_load_threads", Runtime.getRuntime().availableProcessors()), configFiles.length);
+        java.util.concurrent.ExecutorService loadPool = java.util.concurrent.Executors.newFixedThreadPool(Math.max(loadThreads, 1));
+        try {
+            ArrayList<java.util.concurrent.Future<T>> loads = new ArrayList<>();
+            for (final File configFile : configFiles) {
+                loads.add(loadPool.submit(new java.util.concurrent.Callable<T>() {
+
+                    @Override
+                    public T call() {
+                        long startTime = System.nanoTime();
+                        java.util.Properties schemaConfig = new java.util.Properties();
+                        try (java.io.Reader configReader = new java.io.FileReader(configFile)) {
+                            schemaConfig.load(configReader);
+                        } catch (java.io.FileNotFoundException ex) {
+                            IOControl.serverWrapper.log(logId, 1, "неможливо знайти файл " + configFile.getName());
+                        } catch (IOException ex) {
+                            IOControl.serverWrapper.log(logId, 1, "помилка при зчитуванні файлу " + configFile.getName());
+                        }
+                        T newSchema = givenFactory.create(schemaConfig);
+                        long loadTime = java.util.concurrent.TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime);
+                        schemaLoadTimes.put(configFile.getName(), loadTime);
+                        if (loadTime > slowLimit) {
+                            IOControl.serverWrapper.log(logId, 2, "повільне завантаження схеми " + configFile.getName() + ": " + loadTime + " мс");
+                        } else {
+                            IOControl.serverWrapper.log(logId, 3, "схему " + configFile.getName() + " завантажено за " + loadTime + " мс");
+                        }
+                        return newSchema;
+                    }
+                }));
+            }
+            for (int loadIndex = 0; loadIndex < loads.size(); loadIndex++) {
+                T newSchema;
+                try {
+                    newSchema = loads.get(loadIndex).get();
+                } catch (java.util.concurrent.ExecutionException ex) {
+                    IOControl.serverWrapper.postException("Помилка завантаження схеми " + configFiles[loadIndex].getName(), ex.getCause());
+                    continue;
+                }
+                if (newSchema != null) {
+                    schemas.put(configFiles[loadIndex], newSchema);
+                } else {
+                    IOControl.serverWrapper.log(logId, 2, "заванатження модулю для " + configFiles[loadIndex].getName() + " завершилось з помилкою.");
+                }
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } finally {
+            loadPool.shutdown();
+        }
+        return schemas;
+    }
+    
+    /**
+     * Get load times of schema config files.
+     * @return map of load time in milliseconds by file name;
+     */
+    public static java.util.Map<String, Long> getSchemaLoadTimes() {
+        return java.util.Collections.unmodifiableMap(schemaLoadTimes);
+    }
+    
+    /**
+     * Load import modules. Module jars are scanned in parallel 
+     * (<b>module_scan_threads</b> server property, count of processors by default), 
+     * unchanged jars are taken from module cache.
      * @param modulePath path to the module folder.
      * @return list with module containers.
      */
     public static java.util.ArrayList<Utils.ModuleContainer> loadModules(String modulePath) {
         ArrayList<Utils.ModuleContainer> classes = new ArrayList();
         File[] modulesRaw = new File(modulePath).listFiles();
-        for (File moduleFile : modulesRaw) {
-            IOControl.processModule(moduleFile.getName(), modulePath, classes);
+        if (modulesRaw == null || modulesRaw.length == 0) {
+            return classes;
+        }
+        int scanThreads = Math.min(IOControl.getIntProperty("module_scan_threads", Runtime.getRuntime().availableProcessors()), modulesRaw.length);
+        final ModuleCache moduleCache = ModuleCache.forPluginDir(modulePath);
+        java.util.concurrent.ExecutorService scanPool = java.util.concurrent.Executors.newFixedThreadPool(Math.max(scanThreads, 1));
+        try {
+            ArrayList<java.util.concurrent.Future<java.util.List<Class>>> scans = new ArrayList<>();
+            for (final File moduleFile : modulesRaw) {
+                scans.add(scanPool.submit(new java.util.concurrent.Callable<java.util.List<Class>>() {
+
+                    @Override
+                    public java.util.List<Class> call() {
+                        return IOControl.processModule(moduleFile, moduleCache);
+                    }
+                }));
+            }
+            for (int scanIndex = 0; scanIndex < scans.size(); scanIndex++) {
+                java.util.List<Class> jarClasses;
+                try {
+                    jarClasses = scans.get(scanIndex).get();
+                } catch (java.util.concurrent.ExecutionException ex) {
+                    IOControl.serverWrapper.postException("Помилка завантаження модулів з файлу " + modulesRaw[scanIndex].getName(), ex.getCause());
+                    continue;
+                }
+                ArrayList<Utils.ModuleContainer> jarModules = new ArrayList<>();
+                for (Class loadedClass : jarClasses) {
+                    Utils.ModuleContainer module = tryModule(loadedClass);
+                    if (module != null) {
+                        IOControl.serverWrapper.log(LOG_ID, 2, "завантажено модуль '" + module.moduleClass.getName() + "'");
+                        jarModules.add(module);
+                    }
+                }
+                classes.addAll(jarModules);
+            }
+            moduleCache.save();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } finally {
+            scanPool.shutdown();
         }
         return classes;
     }
     
     /**
-     * Process module file and add it to module store.
-     * @param filename name of module file;
-     * @param restOfPath full path to module directory;
-     * @param classes modules store list;
+     * Find and load module classes of module file. Class loader 
+     * of file is closed if file contains no modules.
+     * @param moduleFile module jar file;
+     * @param moduleCache cache of module discovery;
+     * @return list of loaded module classes;
      */
-    private static void processModule(String fileName, String restOfPath, ArrayList<Utils.ModuleContainer> classes) {
-        try {
-            JarFile jarFile;
-            java.net.URLClassLoader loader;
-            loader = java.net.URLClassLoader.newInstance(new URL[] {new URL("jar:file:" + restOfPath + fileName + "!/")});
-            jarFile = new JarFile(restOfPath + "/" + fileName);
-            Enumeration<JarEntry> entries = jarFile.entries();
-            while(entries.hasMoreElements()) {
-                JarEntry entry = entries.nextElement();
-                String entryName = entry.getName();
-                String className = null;
-                if(entryName.endsWith(".class")) {
-                    className = entry.getName().substring(0,entry.getName().length()-6).replace('/', '.');
-                }
-                if (className != null) {
-                    try {
-                        Class loadedClass = loader.loadClass(className);
-                        Utils.ModuleContainer module = tryModule(loadedClass);
-                        if (module != null) {
-                            IOControl.serverWrapper.log(LOG_ID, 2, "завантажено модуль '" + module.moduleClass.getName() + "'");
-                            classes.add(module);
-                        }
-                    } catch (ClassNotFoundException ex) {
-                        IOControl.serverWrapper.log(LOG_ID, 1, "неможливо завантажити клас " + className + "!");
-                    }
-                }
+    private static java.util.List<Class> processModule(File moduleFile, ModuleCache moduleCache) {
+        ArrayList<Class> loadedClasses = new ArrayList<>();
+        if (!moduleFile.isFile()) {
+            return loadedClasses;
+        }
+        java.util.List<String> moduleNames = moduleCache.getClassNames(moduleFile);
+        if (moduleNames == null) {
+            try {
+                moduleNames = ModuleScanner.scanJar(moduleFile);
+            } catch (IOException ex) {
+                IOControl.serverWrapper.log(LOG_ID, 1, "неможливо прочитати файл " + moduleFile.getName() + "!");
+                return loadedClasses;
             }
+            moduleCache.update(moduleFile, moduleNames);
+        }
+        if (moduleNames.isEmpty()) {
+            return loadedClasses;
+        }
+        java.net.URLClassLoader loader;
+        try {
+            loader = java.net.URLClassLoader.newInstance(new URL[] {moduleFile.toURI().toURL()});
         } catch (java.net.MalformedURLException ex) {
-            IOControl.serverWrapper.log(LOG_ID, 1, "некоректний URL для файлу " + fileName + "!");
-        } catch (IOException ex) {
-            IOControl.serverWrapper.log(LOG_ID, 1, "неможливо прочитати файл " + fileName + "!");
+            IOControl.serverWrapper.log(LOG_ID, 1, "некоректний URL для файлу " + moduleFile.getName() + "!");
+            return loadedClasses;
+        }
+        for (String className : moduleNames) {
+            try {
+                loadedClasses.add(loader.loadClass(className));
+            } catch (ClassNotFoundException | LinkageError ex) {
+                IOControl.serverWrapper.log(LOG_ID, 1, "неможливо завантажити клас " + className + "!");
+            }
+        }
+        if (loadedClasses.isEmpty()) {
+            try {
+                loader.close();
+            } catch (IOException ex) {
+                IOControl.serverWrapper.log(LOG_ID, 1, "неможливо закрити файл " + moduleFile.getName() + "!");
+            }
         }
+        return loadedClasses;
     }
     
     /**
@@ -0,0 +1,238 @@
+/**
+ * This file is part of libRibbonIO library (check README).
+ * Copyright (C) 2012-2013 Stanislav Nepochatov
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+**/
+
+package Utils;
+
+/**
+ * Persistent cache of module discovery. Cache file lies next to plugin 
+ * folder and maps each jar (path, size, modification time and SHA-1 
+ * hash) to annotated classes found in its bytes, unchanged jars are 
+ * not scanned on startup. Jar with changed time but same size and hash 
+ * is still taken from cache. Classes are cached before loading, so 
+ * class which failed to load (missing dependency etc.) is tried again 
+ * on next start.<br>
+ * <br>
+ * Line format: <b>path, size, mtime, hash, classes</b> separated by tabs, 
+ * class names are separated by <code>;</code>.
+ * @author Stanislav Nepochatov <spoilt.exile@gmail.com>
+ */
+public class ModuleCache {
+    
+    /**
+     * Header of cache file (cache is dropped when api version changes).
+     */
+    private static final String HEADER = "# libRibbonIO module cache v2, api " + IOControl.IO_API;
+    
+    /**
+     * Cached jar record.
+     */
+    private static class Entry {
+        
+        /**
+         * Size of jar.
+         */
+        long size;
+        
+        /**
+         * Modification time of jar.
+         */
+        long mtime;
+        
+        /**
+         * SHA-1 of jar (hex).
+         */
+        String hash;
+        
+        /**
+         * Annotated class names of jar.
+         */
+        java.util.List<String> classNames = new java.util.ArrayList<>();
+    }
+    
+    /**
+     * Cache file.
+     */
+    private final java.io.File cacheFile;
+    
+    /**
+     * Records by absolute jar path.
+     */
+    private final java.util.HashMap<String, Entry> entries = new java.util.HashMap<>();
+    
+    /**
+     * Paths of jars which were seen on this start.
+     */
+    private final java.util.HashSet<String> seen = new java.util.HashSet<>();
+    
+    /**
+     * Flag of changed cache.
+     */
+    private boolean dirty = false;
+    
+    /**
+     * Default constructor.
+     * @param givenFile cache file;
+     */
+    public ModuleCache(java.io.File givenFile) {
+        cacheFile = givenFile;
+        if (!cacheFile.exists()) {
+            return;
+        }
+        try {
+            java.util.List<String> lines = java.nio.file.Files.readAllLines(cacheFile.toPath(), java.nio.charset.StandardCharsets.UTF_8);
+            if (lines.isEmpty() || !HEADER.equals(lines.get(0))) {
+                dirty = true;
+                return;
+            }
+            for (String currLine : lines.subList(1, lines.size())) {
+                String[] parts = currLine.split("\t", -1);
+                if (parts.length != 5) {
+                    continue;
+                }
+                Entry newEntry = new Entry();
+                newEntry.size = Long.parseLong(parts[1]);
+                newEntry.mtime = Long.parseLong(parts[2]);
+                newEntry.hash = parts[3];
+                for (String currName : parts[4].split(";")) {
+                    if (!currName.isEmpty()) {
+                        newEntry.classNames.add(currName);
+                    }
+                }
+                entries.put(parts[0], newEntry);
+            }
+        } catch (java.io.IOException | NumberFormatException ex) {
+            IOControl.serverWrapper.log(IOControl.LOG_ID, 1, "кеш модулів " + cacheFile.getName() + " пошкоджено");
+            entries.clear();
+            dirty = true;
+        }
+    }
+    
+    /**
+     * Open cache of plugin folder.
+     * @param modulePath path to the module folder;
+     * @return cache;
+     */
+    public static ModuleCache forPluginDir(String modulePath) {
+        java.io.File pluginDir = new java.io.File(modulePath).getAbsoluteFile();
+        return new ModuleCache(new java.io.File(pluginDir.getParentFile(), pluginDir.getName() + ".modcache"));
+    }
+    
+    /**
+     * Get cached module class names of unchanged jar.
+     * @param givenJar jar file;
+     * @return list of class names or null if jar is new or changed;
+     */
+    public java.util.List<String> getClassNames(java.io.File givenJar) {
+        String jarPath = givenJar.getAbsolutePath();
+        Entry cachedEntry;
+        synchronized (this) {
+            seen.add(jarPath);
+            cachedEntry = entries.get(jarPath);
+        }
+        if (cachedEntry == null || cachedEntry.size != givenJar.length()) {
+            return null;
+        }
+        if (cachedEntry.mtime != givenJar.lastModified()) {
+            if (!cachedEntry.hash.equals(ModuleCache.hash(givenJar))) {
+                return null;
+            }
+            synchronized (this) {
+                cachedEntry.mtime = givenJar.lastModified();
+                dirty = true;
+            }
+        }
+        return new java.util.ArrayList<>(cachedEntry.classNames);
+    }
+    
+    /**
+     * Store annotated classes of scanned jar.
+     * @param givenJar jar file;
+     * @param givenClassNames annotated class names found in jar;
+     */
+    public void update(java.io.File givenJar, java.util.List<String> givenClassNames) {
+        Entry newEntry = new Entry();
+        newEntry.size = givenJar.length();
+        newEntry.mtime = givenJar.lastModified();
+        newEntry.hash = ModuleCache.hash(givenJar);
+        if (newEntry.hash == null) {
+            return;
+        }
+        newEntry.classNames.addAll(givenClassNames);
+        synchronized (this) {
+            entries.put(givenJar.getAbsolutePath(), newEntry);
+            dirty = true;
+        }
+    }
+    
+    /**
+     * Drop records of removed jars and write cache file if it was changed.
+     */
+    public synchronized void save() {
+        dirty |= entries.keySet().retainAll(seen);
+        if (!dirty) {
+            return;
+        }
+        StringBuilder cacheText = new StringBuilder(HEADER).append('\n');
+        for (java.util.Map.Entry<String, Entry> currEntry : entries.entrySet()) {
+            Entry currRecord = currEntry.getValue();
+            cacheText.append(currEntry.getKey()).append('\t').append(currRecord.size).append('\t')
+                    .append(currRecord.mtime).append('\t').append(currRecord.hash).append('\t');
+            for (int nameIndex = 0; nameIndex < currRecord.classNames.size(); nameIndex++) {
+                if (nameIndex > 0) {
+                    cacheText.append(';');
+                }
+                cacheText.append(currRecord.classNames.get(nameIndex));
+            }
+            cacheText.append('\n');
+        }
+        java.io.File tempFile = new java.io.File(cacheFile.getPath() + ".tmp");
+        try {
+            java.nio.file.Files.write(tempFile.toPath(), cacheText.toString().getBytes(java.nio.charset.StandardCharsets.UTF_8));
+            java.nio.file.Files.move(tempFile.toPath(), cacheFile.toPath(), 
+                    java.nio.file.StandardCopyOption.REPLACE_EXISTING, 
+                    java.nio.file.StandardCopyOption.ATOMIC_MOVE);
+            dirty = false;
+        } catch (java.io.IOException ex) {
+            IOControl.serverWrapper.log(IOControl.LOG_ID, 1, "неможливо записати кеш модулів " + cacheFile.getName());
+        }
+    }
+    
+    /**
+     * Compute SHA-1 of file.
+     * @param givenFile file to hash;
+     * @return hex string or null if file can't be read;
+     */
+    private static String hash(java.io.File givenFile) {
+        try (java.io.InputStream fileStream = new java.io.FileInputStream(givenFile)) {
+            java.security.MessageDigest digest = java.security.MessageDigest.getInstance("SHA-1");
+            byte[] chunk = new byte[64 * 1024];
+            int readed;
+            while ((readed = fileStream.read(chunk)) != -1) {
+                digest.update(chunk, 0, readed);
+            }
+            StringBuilder hexHash = new StringBuilder();
+            for (byte currByte : digest.digest()) {
+                hexHash.append(String.format("%02x", currByte & 0xff));
+            }
+            return hexHash.toString();
+        } catch (java.io.IOException | java.security.NoSuchAlgorithmException ex) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,124 @@
+/**
+ * This file is part of libRibbonIO library (check README).
+ * Copyright (C) 2012-2013 Stanislav Nepochatov
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+**/
+
+package Utils;
+
+/**
+ * Annotation processor which writes index of modules to 
+ * <code>META-INF/ribbon/modules.index</code> resource of module jar. 
+ * <code>IOControl</code> reads index instead of scanning all classes 
+ * of jar. Index contains binary class names, one per line.<br>
+ * <br>
+ * Incremental build compiles only changed sources, so processor 
+ * merges new modules with index left in class output by previous 
+ * build. Processor is registered for all annotations (<code>*</code>), 
+ * so it runs even if changed sources have no modules: names of classes 
+ * which lost the annotation are dropped, names which can't be resolved 
+ * (deleted classes) are kept until clean build.
+ * @author Stanislav Nepochatov <spoilt.exile@gmail.com>
+ */
+@javax.annotation.processing.SupportedAnnotationTypes("*")
+public class ModuleIndexProcessor extends javax.annotation.processing.AbstractProcessor {
+    
+    /**
+     * Path of index resource in jar.
+     */
+    public static final String INDEX_PATH = "META-INF/ribbon/modules.index";
+    
+    /**
+     * Module classes found in all rounds.
+     */
+    private final java.util.TreeSet<String> moduleNames = new java.util.TreeSet<>();
+    
+    /**
+     * Flag of merged index of previous build.
+     */
+    private boolean previousMerged = false;
+    
+    /**
+     * Flag of existing index in class output (it should be rewritten even if it becomes empty).
+     */
+    private boolean previousFound = false;
+
+    @Override
+    public javax.lang.model.SourceVersion getSupportedSourceVersion() {
+        return javax.lang.model.SourceVersion.latestSupported();
+    }
+
+    @Override
+    public boolean process(java.util.Set<? extends javax.lang.model.element.TypeElement> annotations, javax.annotation.processing.RoundEnvironment roundEnv) {
+        if (!previousMerged) {
+            previousMerged = true;
+            this.mergePreviousIndex();
+        }
+        for (javax.lang.model.element.Element currElement : roundEnv.getElementsAnnotatedWith(RibbonIOModule.class)) {
+            if (currElement instanceof javax.lang.model.element.TypeElement) {
+                moduleNames.add(processingEnv.getElementUtils().getBinaryName((javax.lang.model.element.TypeElement) currElement).toString());
+            }
+        }
+        if (roundEnv.processingOver() && (previousFound || !moduleNames.isEmpty())) {
+            this.writeIndex();
+        }
+        return false;
+    }
+    
+    /**
+     * Add modules from index of previous build (if class output has one).
+     */
+    private void mergePreviousIndex() {
+        java.util.List<String> previousNames = new java.util.ArrayList<>();
+        try {
+            javax.tools.FileObject indexFile = processingEnv.getFiler().getResource(javax.tools.StandardLocation.CLASS_OUTPUT, "", INDEX_PATH);
+            try (java.io.BufferedReader indexReader = new java.io.BufferedReader(new java.io.InputStreamReader(indexFile.openInputStream(), java.nio.charset.StandardCharsets.UTF_8))) {
+                String currLine;
+                while ((currLine = indexReader.readLine()) != null) {
+                    if (!currLine.trim().isEmpty()) {
+                        previousNames.add(currLine.trim());
+                    }
+                }
+            }
+            previousFound = true;
+        } catch (java.io.IOException | IllegalArgumentException ex) {
+            return;
+        }
+        for (String currName : previousNames) {
+            javax.lang.model.element.TypeElement foundElement = processingEnv.getElementUtils().getTypeElement(currName.replace('$', '.'));
+            if (foundElement == null || foundElement.getAnnotation(RibbonIOModule.class) != null) {
+                moduleNames.add(currName);
+            }
+        }
+    }
+    
+    /**
+     * Write index resource to class output.
+     */
+    private void writeIndex() {
+        try {
+            javax.tools.FileObject indexFile = processingEnv.getFiler().createResource(javax.tools.StandardLocation.CLASS_OUTPUT, "", INDEX_PATH);
+            try (java.io.Writer indexWriter = new java.io.OutputStreamWriter(indexFile.openOutputStream(), java.nio.charset.StandardCharsets.UTF_8)) {
+                for (String currName : moduleNames) {
+                    indexWriter.write(currName);
+                    indexWriter.write('\n');
+                }
+            }
+        } catch (java.io.IOException ex) {
+            processingEnv.getMessager().printMessage(javax.tools.Diagnostic.Kind.ERROR, "unable to write " + INDEX_PATH + ": " + ex.getMessage());
+        }
+    }
+}
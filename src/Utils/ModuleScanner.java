@@ -0,0 +1,232 @@
+/**
+ * This file is part of libRibbonIO library (check README).
+ * Copyright (C) 2012-2013 Stanislav Nepochatov
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+**/
+
+package Utils;
+
+/**
+ * Reader of class file annotations. Scanner checks class bytes for 
+ * runtime-visible class annotation without loading the class, so 
+ * module search defines only annotated module classes.
+ * @author Stanislav Nepochatov <spoilt.exile@gmail.com>
+ */
+public final class ModuleScanner {
+    
+    /**
+     * Descriptor of module annotation.
+     */
+    public static final String MODULE_DESCRIPTOR = "L" + RibbonIOModule.class.getName().replace('.', '/') + ";";
+    
+    /**
+     * Check if class has runtime-visible annotation of given type.
+     * @param classStream stream with class file;
+     * @param givenDescriptor descriptor of annotation type (like <code>Lpkg/Name;</code>);
+     * @return true if class is annotated;
+     * @throws java.io.IOException if class file is broken;
+     */
+    public static boolean hasAnnotation(java.io.InputStream classStream, String givenDescriptor) throws java.io.IOException {
+        java.io.DataInputStream classData = new java.io.DataInputStream(new java.io.BufferedInputStream(classStream));
+        if (classData.readInt() != 0xCAFEBABE) {
+            throw new java.io.IOException("not a class file");
+        }
+        classData.readUnsignedShort();
+        classData.readUnsignedShort();
+        int poolSize = classData.readUnsignedShort();
+        String[] utfPool = new String[poolSize];
+        int descriptorIndex = -1;
+        for (int poolIndex = 1; poolIndex < poolSize; poolIndex++) {
+            int tag = classData.readUnsignedByte();
+            switch (tag) {
+                case 1:
+                    utfPool[poolIndex] = classData.readUTF();
+                    if (givenDescriptor.equals(utfPool[poolIndex])) {
+                        descriptorIndex = poolIndex;
+                    }
+                    break;
+                case 5:
+                case 6:
+                    ModuleScanner.skip(classData, 8);
+                    poolIndex++;
+                    break;
+                case 7:
+                case 8:
+                case 16:
+                case 19:
+                case 20:
+                    ModuleScanner.skip(classData, 2);
+                    break;
+                case 15:
+                    ModuleScanner.skip(classData, 3);
+                    break;
+                case 3:
+                case 4:
+                case 9:
+                case 10:
+                case 11:
+                case 12:
+                case 17:
+                case 18:
+                    ModuleScanner.skip(classData, 4);
+                    break;
+                default:
+                    throw new java.io.IOException("unknown constant pool tag " + tag);
+            }
+        }
+        if (descriptorIndex == -1) {
+            return false;
+        }
+        ModuleScanner.skip(classData, 6);
+        ModuleScanner.skip(classData, classData.readUnsignedShort() * 2);
+        for (int memberGroup = 0; memberGroup < 2; memberGroup++) {
+            int memberCount = classData.readUnsignedShort();
+            for (int memberIndex = 0; memberIndex < memberCount; memberIndex++) {
+                ModuleScanner.skip(classData, 6);
+                ModuleScanner.skipAttributes(classData);
+            }
+        }
+        int attributeCount = classData.readUnsignedShort();
+        for (int attributeIndex = 0; attributeIndex < attributeCount; attributeIndex++) {
+            String attributeName = utfPool[classData.readUnsignedShort()];
+            int attributeLength = classData.readInt();
+            if (!"RuntimeVisibleAnnotations".equals(attributeName)) {
+                ModuleScanner.skip(classData, attributeLength);
+                continue;
+            }
+            int annotationCount = classData.readUnsignedShort();
+            for (int annotationIndex = 0; annotationIndex < annotationCount; annotationIndex++) {
+                if (classData.readUnsignedShort() == descriptorIndex) {
+                    return true;
+                }
+                ModuleScanner.skipAnnotationBody(classData);
+            }
+        }
+        return false;
+    }
+    
+    /**
+     * Skip attributes table of class member.
+     * @param classData class file stream;
+     * @throws java.io.IOException if class file is broken;
+     */
+    private static void skipAttributes(java.io.DataInputStream classData) throws java.io.IOException {
+        int attributeCount = classData.readUnsignedShort();
+        for (int attributeIndex = 0; attributeIndex < attributeCount; attributeIndex++) {
+            ModuleScanner.skip(classData, 2);
+            ModuleScanner.skip(classData, classData.readInt());
+        }
+    }
+    
+    /**
+     * Skip element-value pairs of annotation (type index is already read).
+     * @param classData class file stream;
+     * @throws java.io.IOException if class file is broken;
+     */
+    private static void skipAnnotationBody(java.io.DataInputStream classData) throws java.io.IOException {
+        int pairCount = classData.readUnsignedShort();
+        for (int pairIndex = 0; pairIndex < pairCount; pairIndex++) {
+            ModuleScanner.skip(classData, 2);
+            ModuleScanner.skipElementValue(classData);
+        }
+    }
+    
+    /**
+     * Skip annotation element value.
+     * @param classData class file stream;
+     * @throws java.io.IOException if class file is broken;
+     */
+    private static void skipElementValue(java.io.DataInputStream classData) throws java.io.IOException {
+        int tag = classData.readUnsignedByte();
+        switch (tag) {
+            case 'e':
+                ModuleScanner.skip(classData, 4);
+                break;
+            case '@':
+                ModuleScanner.skip(classData, 2);
+                ModuleScanner.skipAnnotationBody(classData);
+                break;
+            case '[':
+                int valueCount = classData.readUnsignedShort();
+                for (int valueIndex = 0; valueIndex < valueCount; valueIndex++) {
+                    ModuleScanner.skipElementValue(classData);
+                }
+                break;
+            default:
+                ModuleScanner.skip(classData, 2);
+                break;
+        }
+    }
+    
+    /**
+     * Skip bytes of stream.
+     * @param classData class file stream;
+     * @param count count of bytes to skip;
+     * @throws java.io.IOException if stream ends too early;
+     */
+    private static void skip(java.io.DataInputStream classData, int count) throws java.io.IOException {
+        int skipped = 0;
+        while (skipped < count) {
+            int step = classData.skipBytes(count - skipped);
+            if (step <= 0) {
+                throw new java.io.EOFException();
+            }
+            skipped += step;
+        }
+    }
+    
+    /**
+     * Find annotated module classes in jar file. Module index 
+     * (see <code>ModuleIndexProcessor</code>) is used if jar has one, 
+     * all classes of jar are scanned otherwise.
+     * @param givenJar jar file to scan;
+     * @return names of module classes;
+     * @throws java.io.IOException if jar can't be read;
+     */
+    public static java.util.List<String> scanJar(java.io.File givenJar) throws java.io.IOException {
+        java.util.ArrayList<String> moduleNames = new java.util.ArrayList<>();
+        try (java.util.jar.JarFile jarFile = new java.util.jar.JarFile(givenJar)) {
+            java.util.jar.JarEntry indexEntry = jarFile.getJarEntry(ModuleIndexProcessor.INDEX_PATH);
+            if (indexEntry != null) {
+                try (java.io.BufferedReader indexReader = new java.io.BufferedReader(new java.io.InputStreamReader(jarFile.getInputStream(indexEntry), java.nio.charset.StandardCharsets.UTF_8))) {
+                    String currLine;
+                    while ((currLine = indexReader.readLine()) != null) {
+                        if (!currLine.trim().isEmpty()) {
+                            moduleNames.add(currLine.trim());
+                        }
+                    }
+                }
+                return moduleNames;
+            }
+            java.util.Enumeration<java.util.jar.JarEntry> entries = jarFile.entries();
+            while (entries.hasMoreElements()) {
+                java.util.jar.JarEntry entry = entries.nextElement();
+                String entryName = entry.getName();
+                if (!entryName.endsWith(".class") || entryName.equals("module-info.class")) {
+                    continue;
+                }
+                try (java.io.InputStream classStream = jarFile.getInputStream(entry)) {
+                    if (ModuleScanner.hasAnnotation(classStream, MODULE_DESCRIPTOR)) {
+                        moduleNames.add(entryName.substring(0, entryName.length() - 6).replace('/', '.'));
+                    }
+                } catch (java.io.IOException ex) {
+                    IOControl.serverWrapper.log(IOControl.LOG_ID, 1, "неможливо прочитати клас " + entryName + " з файлу " + givenJar.getName());
+                }
+            }
+        }
+        return moduleNames;
+    }
+}
@@ -41,6 +41,33 @@ public abstract class SystemWrapper {
      */
     public abstract void addMessage(String schemeName, String typeName, MessageClasses.Message givenMessage);
     
+    /**
+     * Add batch of messages to the system. Default implementation 
+     * adds messages one by one, server may override it to add and 
+     * index whole batch in one pass.
+     * @param schemeName name of import scheme;
+     * @param typeName name of import type;
+     * @param givenMessages messages to add;
+     */
+    public void addMessages(String schemeName, String typeName, java.util.List<MessageClasses.Message> givenMessages) {
+        for (MessageClasses.Message currMessage : givenMessages) {
+            this.addMessage(schemeName, typeName, currMessage);
+        }
+    }
+    
+    /**
+     * Get message by index. Used to restore pending exports from 
+     * export journal and spill file after restart, default implementation 
+     * returns <code>null</code> (such entries can't be restored, so export 
+     * journal and <code>SPILL</code> admission policy need server which 
+     * overrides this method).
+     * @param givenIndex index of message;
+     * @return message or null if message can't be found;
+     */
+    public MessageClasses.Message getMessage(String givenIndex) {
+        return null;
+    }
+    
     /**
      * Call message index updating.
      */